@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cn.brainpoint.febs.Febs;
+import cn.brainpoint.febs.Promise;
+import cn.brainpoint.febs.libs.promise.IPromise;
+import cn.brainpoint.febs.libs.promise.IReject;
+import cn.brainpoint.febs.libs.promise.IResolve;
+
+/**
+ * Promise.all of width, the members are resolved in the executor.
+ *
+ * @author pengxiang.li
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllBenchmark {
+
+    @Param({ "1", "100", "10000" })
+    public int width;
+
+    @Param({ Febs.ThreadPoolCfg.EXECUTOR_THREAD_POOL, Febs.ThreadPoolCfg.EXECUTOR_FORK_JOIN,
+            Febs.ThreadPoolCfg.EXECUTOR_VIRTUAL_THREAD })
+    public String executor;
+
+    @Setup
+    public void setup() {
+        BenchExecutor.init(this.executor);
+    }
+
+    @Benchmark
+    public Object all() throws Exception {
+        List<IPromise> list = new ArrayList<>(this.width);
+        for (int i = 0; i < this.width; i++) {
+            final int v = i;
+            list.add(new Promise<>((IResolve<Integer> resolve, IReject reject) -> {
+                resolve.execute(v);
+            }));
+        }
+        return Promise.all(list).execute().get();
+    }
+}
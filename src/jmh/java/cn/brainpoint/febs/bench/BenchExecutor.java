@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.bench;
+
+import cn.brainpoint.febs.Febs;
+
+/**
+ * The executor of Febs under benchmark.
+ *
+ * @author pengxiang.li
+ */
+final class BenchExecutor {
+
+    private BenchExecutor() {
+    }
+
+    /**
+     * Initial Febs with the executor type, the pool size (or the parallelism of
+     * fork join) is the processor count.
+     *
+     * @param executorType the executor type of ThreadPoolCfg.
+     */
+    static void init(String executorType) {
+        if (Febs.ThreadPoolCfg.EXECUTOR_VIRTUAL_THREAD.equals(executorType) && !Febs.isVirtualThreadSupported()) {
+            // don't report the thread pool as the virtual thread; BenchMain skips it unless
+            // it is specified by -p.
+            throw new IllegalStateException("virtual thread requires JDK 21+");
+        }
+        Febs.ThreadPoolCfg cfg = new Febs.ThreadPoolCfg(executorType);
+        cfg.corePoolSize = Runtime.getRuntime().availableProcessors();
+        cfg.maximumPoolSize = cfg.corePoolSize;
+        Febs.init(cfg);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+import cn.brainpoint.febs.Febs;
+
+/**
+ * The launcher of JMH, the executor types not supported by this JVM are
+ * skipped unless the executor is specified by -p.
+ *
+ * @author pengxiang.li
+ */
+public final class BenchMain {
+
+    private BenchMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> list = new ArrayList<>(Arrays.asList(args));
+        boolean specified = false;
+        for (int i = 0; i < list.size() - 1; i++) {
+            if ("-p".equals(list.get(i)) && list.get(i + 1).startsWith("executor=")) {
+                specified = true;
+            }
+        }
+        if (!specified && !Febs.isVirtualThreadSupported()) {
+            list.add("-p");
+            list.add("executor=" + Febs.ThreadPoolCfg.EXECUTOR_THREAD_POOL + "," + Febs.ThreadPoolCfg.EXECUTOR_FORK_JOIN);
+        }
+        Main.main(list.toArray(new String[0]));
+    }
+}
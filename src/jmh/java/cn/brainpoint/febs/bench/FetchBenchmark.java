@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpServer;
+
+import cn.brainpoint.febs.Febs;
+import cn.brainpoint.febs.Net;
+import cn.brainpoint.febs.PromiseFuture;
+
+/**
+ * Febs.Net.fetch against the local http server, by the network engine. Every
+ * invocation starts CONCURRENCY fetches without waiting, then joins them; the
+ * score is fetches per second.
+ *
+ * @author pengxiang.li
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@OperationsPerInvocation(FetchBenchmark.CONCURRENCY)
+public class FetchBenchmark {
+
+    static final int CONCURRENCY = 1000;
+    private static final byte[] BODY = "hello".getBytes(StandardCharsets.UTF_8);
+
+    @Param({ Net.ENGINE_URL_CONNECTION, Net.ENGINE_HTTP_CLIENT, Net.ENGINE_HTTP2 })
+    public String engine;
+
+    @Param({ Febs.ThreadPoolCfg.EXECUTOR_THREAD_POOL, Febs.ThreadPoolCfg.EXECUTOR_FORK_JOIN,
+            Febs.ThreadPoolCfg.EXECUTOR_VIRTUAL_THREAD })
+    public String executor;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String url;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchExecutor.init(this.executor);
+        Net.setEngine(this.engine);
+        if (!this.engine.equals(Net.getEngine())) {
+            throw new IllegalStateException(this.engine + " is not supported by this JVM");
+        }
+
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), CONCURRENCY);
+        this.server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(200, BODY.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(BODY);
+            }
+        });
+        this.serverExecutor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.serverExecutor);
+        this.server.start();
+        this.url = "http://127.0.0.1:" + this.server.getAddress().getPort() + "/";
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.server.stop(0);
+        this.serverExecutor.shutdown();
+        Net.setEngine(Net.ENGINE_URL_CONNECTION);
+    }
+
+    @Benchmark
+    public Object fetch() throws Exception {
+        PromiseFuture[] futures = new PromiseFuture[CONCURRENCY];
+        for (int i = 0; i < CONCURRENCY; i++) {
+            futures[i] = Febs.Net.fetch(this.url).then(res -> {
+                return res.text();
+            }).execute();
+        }
+        Object last = null;
+        for (PromiseFuture future : futures) {
+            last = future.get();
+        }
+        return last;
+    }
+}
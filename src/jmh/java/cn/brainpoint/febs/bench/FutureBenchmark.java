@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cn.brainpoint.febs.Febs;
+import cn.brainpoint.febs.Promise;
+import cn.brainpoint.febs.PromiseFuture;
+import cn.brainpoint.febs.libs.promise.IReject;
+import cn.brainpoint.febs.libs.promise.IResolve;
+
+/**
+ * PromiseFuture.get() under contention: many threads read one settled future,
+ * and many threads wait for their own promises in the shared executor.
+ *
+ * @author pengxiang.li
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class FutureBenchmark {
+
+    @Param({ Febs.ThreadPoolCfg.EXECUTOR_THREAD_POOL, Febs.ThreadPoolCfg.EXECUTOR_FORK_JOIN,
+            Febs.ThreadPoolCfg.EXECUTOR_VIRTUAL_THREAD })
+    public String executor;
+
+    private PromiseFuture settled;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchExecutor.init(this.executor);
+        this.settled = new Promise<>((IResolve<Integer> resolve, IReject reject) -> {
+            resolve.execute(1);
+        }).execute();
+        this.settled.get();
+    }
+
+    @Benchmark
+    public Object getSettled() throws Exception {
+        return this.settled.get();
+    }
+
+    @Benchmark
+    public Object getPending() throws Exception {
+        return new Promise<>((IResolve<Integer> resolve, IReject reject) -> {
+            resolve.execute(1);
+        }).execute().get();
+    }
+}
@@ -6,27 +6,37 @@
 
 package cn.brainpoint.febs;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import cn.brainpoint.febs.exception.FebsRuntimeException;
+import cn.brainpoint.febs.libs.metrics.IMetrics;
 
 /**
  * @author pengxiang.li
  */
 public class Febs {
 
+    private static boolean inited = false;
+    private static volatile ExecutorService executorService = null;
+    private static volatile ScheduledExecutorService scheduledExecutorService = null;
+    private static final Method virtualThreadFactory = findVirtualThreadFactory();
+    private static volatile IMetrics metrics = IMetrics.NOOP;
+
     static {
         init();
     }
 
-    private static boolean inited = false;
-    private static ExecutorService executorService = null;
-
     /**
      * The network transfer in fetch style.
      */
@@ -41,14 +51,66 @@ public class Febs {
      * This thread pool config will use in Promise.
      */
     public static class ThreadPoolCfg {
+        /**
+         * Use ThreadPoolExecutor with the config.
+         */
+        public static final String EXECUTOR_THREAD_POOL = "threadPool";
+        /**
+         * Use a virtual thread per task on JDK 21+, the pool config is ignored. It
+         * falls back to EXECUTOR_THREAD_POOL on the old JDK.
+         */
+        public static final String EXECUTOR_VIRTUAL_THREAD = "virtualThread";
+        /**
+         * Use ForkJoinPool in async mode, the parallelism is maximumPoolSize. The
+         * task submitted in a worker (e.g. the continuation of promise) is pushed
+         * to the local deque of the worker, the idle workers steal the tasks. The
+         * queue config is ignored.
+         */
+        public static final String EXECUTOR_FORK_JOIN = "forkJoin";
+
+        public String executorType = EXECUTOR_THREAD_POOL;
         public int corePoolSize = 2;
         public int maximumPoolSize = 4;
         /**
          * in millisecond.
          */
         public int keepAliveTime = 20000;
+        /**
+         * Reject the task by handler if the queue is full, the default handler
+         * throws RejectedExecutionException.
+         */
+        public static final String QUEUE_POLICY_ABORT = "abort";
+        /**
+         * The task waits for the capacity of queue if it is full, no thread is
+         * blocked; the promise is pending until the task is queued.
+         */
+        public static final String QUEUE_POLICY_BACKPRESSURE = "backpressure";
+        /**
+         * Run the task in the caller thread if the queue is full.
+         */
+        public static final String QUEUE_POLICY_CALLER_RUNS = "callerRuns";
+        /**
+         * Reject the oldest promise in queue if it is full, its chain is rejected
+         * by RejectedExecutionException.
+         */
+        public static final String QUEUE_POLICY_SHED_OLDEST = "shedOldest";
+
         public BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<>();
         public RejectedExecutionHandler handler = new ThreadPoolExecutor.AbortPolicy();
+        /**
+         * The capacity of the bounded queue, it replaces workQueue; 0 to use
+         * workQueue. The pool grows to maximumPoolSize after the queue is full.
+         */
+        public int queueCapacity = 0;
+        /**
+         * The policy if the queue is full and the pool reaches maximumPoolSize.
+         */
+        public String queuePolicy = QUEUE_POLICY_ABORT;
+        /**
+         * The max tasks waiting for the queue in backpressure mode, the others
+         * are rejected by handler; 0 is unlimited.
+         */
+        public int maxWaiting = 0;
 
         public ThreadPoolCfg() {
         }
@@ -71,6 +133,97 @@ public class Febs {
                 this.handler = handler;
             }
         }
+
+        /**
+         * Make a config with the executor type.
+         *
+         * @param executorType EXECUTOR_THREAD_POOL, EXECUTOR_VIRTUAL_THREAD or
+         *                     EXECUTOR_FORK_JOIN.
+         */
+        public ThreadPoolCfg(String executorType) {
+            if (executorType != null) {
+                this.executorType = executorType;
+            }
+        }
+    }
+
+    /**
+     * Set the metrics of promise, executor and network transfer. <i>e.g.</i>
+     * <code>
+     *     DefaultMetrics metrics = new DefaultMetrics();
+     *     Febs.setMetrics(metrics);
+     * </code>
+     *
+     * The queue wait and run time are measured in the thread pool executor, not
+     * in the virtual thread or fork join executor.
+     *
+     * @param v the metrics, null to disable it (IMetrics.NOOP).
+     */
+    public static void setMetrics(IMetrics v) {
+        metrics = v == null ? IMetrics.NOOP : v;
+    }
+
+    /**
+     * Get the metrics.
+     *
+     * @return the metrics, IMetrics.NOOP if disabled.
+     */
+    public static IMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The count of tasks waiting for the capacity of the full queue, in
+     * QUEUE_POLICY_BACKPRESSURE mode.
+     *
+     * @return the count.
+     */
+    public static int getWaitingTaskCount() {
+        ExecutorService service = executorService;
+        return service instanceof FebsExecutor ? ((FebsExecutor) service).getWaitingCount() : 0;
+    }
+
+    /**
+     * Whether the virtual thread is supported by this JVM (JDK 21+).
+     *
+     * @return true if supported.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return virtualThreadFactory != null;
+    }
+
+    /**
+     * Create the virtual-thread-per-task executor by reflection, the library is
+     * built for JDK 1.8.
+     *
+     * @return the executor, or null if the JVM doesn't support virtual thread.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        if (virtualThreadFactory == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) virtualThreadFactory.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newForkJoinPool(int parallelism) {
+        AtomicInteger index = new AtomicInteger(0);
+        return new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName("febs-fj-" + index.incrementAndGet());
+            return t;
+        }, null, true);
+    }
+
+    private static Method findVirtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (Exception e) {
+            return null;
+        }
     }
 
     /**
@@ -99,6 +252,34 @@ public class Febs {
         return executorService;
     }
 
+    /**
+     * Get the timer, it has only one daemon thread to fire the timers. The
+     * scheduled task should be short, or dispatch the work to
+     * getExecutorService().
+     *
+     * @return the timer.
+     */
+    public static ScheduledExecutorService getScheduledExecutorService() {
+        ScheduledExecutorService timer = scheduledExecutorService;
+        if (timer == null) {
+            synchronized (Febs.class) {
+                timer = scheduledExecutorService;
+                if (timer == null) {
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                        Thread t = new Thread(r, "febs-timer");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    // cancelled timer don't stay in the queue.
+                    executor.setRemoveOnCancelPolicy(true);
+                    timer = executor;
+                    scheduledExecutorService = timer;
+                }
+            }
+        }
+        return timer;
+    }
+
     /**
      * Initial
      */
@@ -111,7 +292,8 @@ public class Febs {
     }
 
     /**
-     * Initial with thread pool config.
+     * Initial with thread pool config. The previous thread pool is shutdown
+     * gracefully, the running promise will finish in it.
      * 
      * @param threadPoolCfg thread pool config.
      */
@@ -119,12 +301,22 @@ public class Febs {
         _initThreadPool(threadPoolCfg);
     }
 
-    private static void _initThreadPool(ThreadPoolCfg threadPoolCfg) {
-        if (null != executorService) {
-            executorService.shutdownNow();
-            executorService = null;
+    private static synchronized void _initThreadPool(ThreadPoolCfg threadPoolCfg) {
+        ExecutorService old = executorService;
+        ExecutorService service = null;
+        if (ThreadPoolCfg.EXECUTOR_VIRTUAL_THREAD.equals(threadPoolCfg.executorType)) {
+            service = newVirtualThreadExecutor();
+        } else if (ThreadPoolCfg.EXECUTOR_FORK_JOIN.equals(threadPoolCfg.executorType)) {
+            service = newForkJoinPool(Math.max(threadPoolCfg.maximumPoolSize, 1));
+        }
+        if (service == null) {
+            service = new FebsExecutor(threadPoolCfg);
+        }
+        executorService = service;
+
+        // 不中断正在执行的任务, 已提交的任务执行完后旧线程池退出.
+        if (null != old) {
+            old.shutdown();
         }
-        executorService = new ThreadPoolExecutor(threadPoolCfg.corePoolSize, threadPoolCfg.maximumPoolSize,
-                threadPoolCfg.keepAliveTime, TimeUnit.MILLISECONDS, threadPoolCfg.workQueue, threadPoolCfg.handler);
     }
 }
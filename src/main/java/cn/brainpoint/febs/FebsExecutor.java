@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cn.brainpoint.febs.libs.metrics.IMetrics;
+
+/**
+ * The thread pool of Febs. It measures the queue wait and run time of task if
+ * the metrics is enabled, and handles the full queue by the queue policy of
+ * ThreadPoolCfg.
+ *
+ * @author pengxiang.li
+ */
+final class FebsExecutor extends ThreadPoolExecutor {
+
+    /**
+     * The task can be rejected after it is queued, e.g. the listener of
+     * promise; the promise is rejected instead of never finished.
+     */
+    interface RejectableTask extends Runnable {
+        void reject(Exception e);
+    }
+
+    private final String policy;
+    private final int maxWaiting;
+    private final RejectedExecutionHandler handler;
+    /**
+     * The tasks waiting for the capacity of queue in backpressure mode.
+     */
+    private final ConcurrentLinkedDeque<Runnable> waiting = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger waitingCount = new AtomicInteger(0);
+
+    FebsExecutor(Febs.ThreadPoolCfg cfg) {
+        super(cfg.corePoolSize, cfg.maximumPoolSize, cfg.keepAliveTime, TimeUnit.MILLISECONDS,
+                cfg.queueCapacity > 0 ? new ArrayBlockingQueue<>(cfg.queueCapacity) : cfg.workQueue);
+        this.policy = cfg.queuePolicy == null ? Febs.ThreadPoolCfg.QUEUE_POLICY_ABORT : cfg.queuePolicy;
+        this.maxWaiting = cfg.maxWaiting;
+        this.handler = cfg.handler;
+        this.setRejectedExecutionHandler((r, e) -> this.rejected(r));
+    }
+
+    /**
+     * The count of tasks waiting for the capacity of queue.
+     */
+    int getWaitingCount() {
+        return this.waitingCount.get();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        IMetrics m = Febs.getMetrics();
+        if (m == IMetrics.NOOP || command == null) {
+            super.execute(command);
+            return;
+        }
+        super.execute(command instanceof RejectableTask ? new MeteredRejectableTask((RejectableTask) command, m)
+                : new MeteredTask(command, m));
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        if (this.waitingCount.get() > 0) {
+            this.drainWaiting();
+        }
+    }
+
+    /**
+     * The waiting tasks are handed over to the current executor of Febs, e.g.
+     * the new pool of Febs.init(); or rejected if this is still the current
+     * executor.
+     */
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        this.handOverWaiting();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks = super.shutdownNow();
+        Runnable task;
+        while ((task = this.waiting.poll()) != null) {
+            this.waitingCount.decrementAndGet();
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    @Override
+    protected void terminated() {
+        // parked by the race with shutdown().
+        this.handOverWaiting();
+    }
+
+    /**
+     * Called if the queue is full and the pool reaches maximumPoolSize.
+     */
+    private void rejected(Runnable r) {
+        IMetrics m = Febs.getMetrics();
+        if (this.isShutdown()) {
+            this.abort(r, m);
+            return;
+        }
+
+        switch (this.policy) {
+            case Febs.ThreadPoolCfg.QUEUE_POLICY_BACKPRESSURE:
+                if (this.maxWaiting > 0 && this.waitingCount.get() >= this.maxWaiting) {
+                    this.abort(r, m);
+                    return;
+                }
+                this.waitingCount.incrementAndGet();
+                this.waiting.offer(r);
+                m.taskParked();
+                // the queue may have room now.
+                this.drainWaiting();
+                return;
+            case Febs.ThreadPoolCfg.QUEUE_POLICY_CALLER_RUNS:
+                m.taskCallerRuns();
+                r.run();
+                return;
+            case Febs.ThreadPoolCfg.QUEUE_POLICY_SHED_OLDEST:
+                if (this.shedOldest()) {
+                    super.execute(r);
+                } else {
+                    // no task can be shed, e.g. the timer task.
+                    m.taskCallerRuns();
+                    r.run();
+                }
+                return;
+            default:
+                this.abort(r, m);
+        }
+    }
+
+    /**
+     * Reject the task by the handler, only this path is counted as rejected;
+     * the parked, caller runs and shed tasks have their own counters.
+     */
+    private void abort(Runnable r, IMetrics m) {
+        m.taskRejected();
+        this.handler.rejectedExecution(r, this);
+    }
+
+    /**
+     * Move the waiting tasks to the queue while it has room.
+     */
+    private void drainWaiting() {
+        for (;;) {
+            if (this.isShutdown()) {
+                // shutdown() hands over the waiting tasks.
+                return;
+            }
+            Runnable task = this.waiting.poll();
+            if (task == null) {
+                return;
+            }
+            if (!this.getQueue().offer(task)) {
+                this.waiting.offerFirst(task);
+                return;
+            }
+            this.waitingCount.decrementAndGet();
+            if (this.isShutdown() && this.getQueue().remove(task)) {
+                // queued after shutdown, no worker may run it.
+                this.handOver(task);
+                return;
+            }
+            if (this.getPoolSize() == 0) {
+                this.prestartCoreThread();
+            }
+        }
+    }
+
+    private void handOverWaiting() {
+        Runnable task;
+        while ((task = this.waiting.poll()) != null) {
+            this.waitingCount.decrementAndGet();
+            this.handOver(task);
+        }
+    }
+
+    /**
+     * Run the task of this executor after shutdown in the current executor of
+     * Febs, or reject it.
+     */
+    private void handOver(Runnable task) {
+        ExecutorService next = Febs.getExecutorService();
+        if (next != this && !next.isShutdown()) {
+            try {
+                // the new executor measures it again.
+                next.execute(task instanceof MeteredTask ? ((MeteredTask) task).task : task);
+                return;
+            } catch (RejectedExecutionException e) {
+                // reject below.
+            }
+        }
+
+        IMetrics m = Febs.getMetrics();
+        if (task instanceof RejectableTask) {
+            m.taskRejected();
+            ((RejectableTask) task).reject(new RejectedExecutionException("Executor shutdown"));
+            return;
+        }
+        try {
+            this.abort(task, m);
+        } catch (RejectedExecutionException e) {
+            // the handler throws, nothing to notify.
+        }
+    }
+
+    /**
+     * Remove the oldest rejectable task in queue and reject it.
+     *
+     * @return false if there is no rejectable task.
+     */
+    private boolean shedOldest() {
+        for (Runnable task : this.getQueue()) {
+            if (task instanceof RejectableTask && this.getQueue().remove(task)) {
+                Febs.getMetrics().taskShed();
+                ((RejectableTask) task).reject(new RejectedExecutionException("Task shed by the full queue"));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class MeteredTask implements Runnable {
+        final Runnable task;
+        final IMetrics metrics;
+        final long queued = System.nanoTime();
+
+        MeteredTask(Runnable task, IMetrics metrics) {
+            this.task = task;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                this.task.run();
+            } finally {
+                this.metrics.taskExecuted(start - this.queued, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static final class MeteredRejectableTask extends MeteredTask implements RejectableTask {
+        MeteredRejectableTask(RejectableTask task, IMetrics metrics) {
+            super(task, metrics);
+        }
+
+        @Override
+        public void reject(Exception e) {
+            ((RejectableTask) this.task).reject(e);
+        }
+    }
+}
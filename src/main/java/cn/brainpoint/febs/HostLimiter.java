@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-host limiter of network transfer: the max in-flight requests and the
+ * token bucket rate. The request waiting for permit is queued, no thread is
+ * held; it is started by the request released the permit or by the timer.
+ *
+ * @author pengxiang.li
+ */
+final class HostLimiter {
+
+    private volatile int maxInFlight = 0;
+    private volatile double rate = 0;
+    private volatile int burst = 1;
+    private final Map<String, Integer> hostMaxInFlight = new ConcurrentHashMap<>();
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @param max the max in-flight requests of every host, 0 is unlimited.
+     */
+    void setMaxInFlight(int max) {
+        this.maxInFlight = max;
+        this.wakeAll();
+    }
+
+    /**
+     * @param host the host.
+     * @param max  the max in-flight requests of the host, 0 is unlimited, -1 to
+     *             use the default.
+     */
+    void setMaxInFlight(String host, int max) {
+        if (max < 0) {
+            this.hostMaxInFlight.remove(host.toLowerCase());
+        } else {
+            this.hostMaxInFlight.put(host.toLowerCase(), max);
+        }
+        this.wakeAll();
+    }
+
+    /**
+     * @param permitsPerSecond the rate of every host, 0 is unlimited.
+     * @param burst            the max permits saved in the bucket.
+     */
+    void setRate(double permitsPerSecond, int burst) {
+        this.rate = permitsPerSecond;
+        this.burst = Math.max(burst, 1);
+        this.wakeAll();
+    }
+
+    boolean isEnabled() {
+        return this.maxInFlight > 0 || this.rate > 0 || !this.hostMaxInFlight.isEmpty();
+    }
+
+    /**
+     * Run the task after the permit is acquired, the task must call
+     * release() after the transfer finished.
+     *
+     * @param host the host.
+     * @param task the task, it runs in current thread if the permit is
+     *             available now.
+     */
+    void acquire(String host, Runnable task) {
+        Host h;
+        for (;;) {
+            h = this.hosts.computeIfAbsent(host.toLowerCase(), k -> new Host(k));
+            synchronized (h) {
+                // evicted after it was got.
+                if (h.removed) {
+                    continue;
+                }
+                h.queue.add(task);
+            }
+            break;
+        }
+        h.drain();
+    }
+
+    void release(String host) {
+        Host h = this.hosts.get(host.toLowerCase());
+        if (h != null) {
+            synchronized (h) {
+                h.inFlight--;
+            }
+            h.drain();
+            this.evictIfIdle(h);
+        }
+    }
+
+    /**
+     * Remove the host without in-flight and queued requests, so the map doesn't
+     * grow with the distinct hosts. The host of rate is kept until the bucket is
+     * full, otherwise the new host would allow a burst at once.
+     */
+    private void evictIfIdle(Host h) {
+        long delay;
+        synchronized (h) {
+            if (h.removed || h.evictScheduled || h.inFlight > 0 || !h.queue.isEmpty() || h.timerScheduled) {
+                return;
+            }
+            delay = 0;
+            if (rate > 0) {
+                h.refill();
+                if (h.tokens < burst) {
+                    h.evictScheduled = true;
+                    delay = (long) Math.ceil((burst - h.tokens) / rate * 1_000_000_000L);
+                }
+            }
+            if (delay == 0) {
+                h.removed = true;
+                this.hosts.remove(h.name, h);
+                return;
+            }
+        }
+        Febs.getScheduledExecutorService().schedule(() -> {
+            synchronized (h) {
+                h.evictScheduled = false;
+            }
+            this.evictIfIdle(h);
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The count of hosts in the map.
+     */
+    int hostCount() {
+        return this.hosts.size();
+    }
+
+    private void wakeAll() {
+        for (Host h : this.hosts.values()) {
+            h.drain();
+        }
+    }
+
+    private final class Host {
+        final String name;
+        final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        int inFlight = 0;
+        double tokens = -1;
+        long refillTime = System.nanoTime();
+        boolean timerScheduled = false;
+        boolean evictScheduled = false;
+        boolean removed = false;
+
+        Host(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Start the queued tasks while the permit is available.
+         */
+        void drain() {
+            for (;;) {
+                Runnable task;
+                long delay = 0;
+                synchronized (this) {
+                    task = this.queue.peek();
+                    if (task == null) {
+                        return;
+                    }
+                    Integer hostMax = hostMaxInFlight.get(this.name);
+                    int max = hostMax != null ? hostMax : maxInFlight;
+                    if (max > 0 && this.inFlight >= max) {
+                        // wait for release().
+                        return;
+                    }
+                    if (rate > 0) {
+                        this.refill();
+                        if (this.tokens < 1) {
+                            if (this.timerScheduled) {
+                                return;
+                            }
+                            this.timerScheduled = true;
+                            delay = (long) Math.ceil((1 - this.tokens) / rate * 1_000_000_000L);
+                        } else {
+                            this.tokens -= 1;
+                        }
+                    }
+                    if (delay == 0) {
+                        this.queue.poll();
+                        this.inFlight++;
+                    }
+                }
+
+                if (delay > 0) {
+                    Febs.getScheduledExecutorService().schedule(() -> {
+                        synchronized (this) {
+                            this.timerScheduled = false;
+                        }
+                        try {
+                            Febs.getExecutorService().execute(this::drain);
+                        } catch (RejectedExecutionException e) {
+                            this.drain();
+                        }
+                    }, delay, TimeUnit.NANOSECONDS);
+                    return;
+                }
+
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    // the task releases the permit and rejects its request itself.
+                }
+            }
+        }
+
+        /**
+         * Add the tokens since last refill, the bucket is full at first.
+         */
+        private void refill() {
+            long now = System.nanoTime();
+            if (this.tokens < 0) {
+                this.tokens = burst;
+            } else {
+                this.tokens = Math.min(burst, this.tokens + (now - this.refillTime) / 1_000_000_000.0 * rate);
+            }
+            this.refillTime = now;
+        }
+    }
+}
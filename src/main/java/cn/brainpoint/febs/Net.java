@@ -6,10 +6,28 @@
 
 package cn.brainpoint.febs;
 
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
 import javax.net.ssl.X509TrustManager;
 
+import cn.brainpoint.febs.libs.metrics.IMetrics;
+import cn.brainpoint.febs.libs.net.HttpClientTransfer;
 import cn.brainpoint.febs.libs.net.Request;
 import cn.brainpoint.febs.libs.net.Response;
+import cn.brainpoint.febs.libs.net.ResponseCache;
 import cn.brainpoint.febs.libs.net.Transfer;
 import cn.brainpoint.febs.libs.promise.IReject;
 import cn.brainpoint.febs.libs.promise.IResolve;
@@ -21,6 +39,35 @@ import cn.brainpoint.febs.libs.promise.IResolve;
  */
 public class Net {
 
+    /**
+     * The blocking engine on HttpURLConnection, every request holds a thread of
+     * executor.
+     */
+    public static final String ENGINE_URL_CONNECTION = "urlConnection";
+    /**
+     * The non-blocking engine on java.net.http.HttpClient (JDK 11+), the
+     * response is completed by the io callback. It falls back to
+     * ENGINE_URL_CONNECTION on the old JDK.
+     */
+    public static final String ENGINE_HTTP_CLIENT = "httpClient";
+    /**
+     * The HTTP/2 engine on java.net.http.HttpClient (JDK 11+): h2 over TLS by
+     * ALPN, h2c by upgrade over cleartext; the concurrent requests to the same
+     * host are multiplexed over one connection. It falls back to HTTP/1.1 if
+     * the server doesn't support it, and to ENGINE_URL_CONNECTION on the old
+     * JDK.
+     */
+    public static final String ENGINE_HTTP2 = "http2";
+
+    private static volatile String engine = ENGINE_URL_CONNECTION;
+    private static volatile ResponseCache responseCache = null;
+    /**
+     * The headers in the key of single flight, null if it is disabled.
+     */
+    private static volatile String[] singleFlightHeaders = null;
+    private static final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private static final HostLimiter hostLimiter = new HostLimiter();
+
     static {
         Febs.init();
     }
@@ -38,6 +85,99 @@ public class Net {
         Transfer.setDefaultTrustManger(trustManager);
     }
 
+    /**
+     * Set the network engine. The HttpClient engines verify the hostname of
+     * certificate, the URL engine doesn't.
+     *
+     * @param engineType ENGINE_URL_CONNECTION, ENGINE_HTTP_CLIENT or
+     *                   ENGINE_HTTP2.
+     */
+    public static void setEngine(String engineType) {
+        engine = engineType == null ? ENGINE_URL_CONNECTION : engineType;
+    }
+
+    /**
+     * Get the network engine in use, ENGINE_HTTP_CLIENT and ENGINE_HTTP2 fall
+     * back to ENGINE_URL_CONNECTION if they are not supported.
+     *
+     * @return the engine type.
+     */
+    public static String getEngine() {
+        String type = engine;
+        if ((ENGINE_HTTP_CLIENT.equals(type) || ENGINE_HTTP2.equals(type)) && HttpClientTransfer.isSupported()) {
+            return type;
+        }
+        return ENGINE_URL_CONNECTION;
+    }
+
+    /**
+     * Set the response cache of GET request, it is disabled by default.
+     *
+     * @param cache the response cache, null to disable it.
+     */
+    public static void setResponseCache(ResponseCache cache) {
+        responseCache = cache;
+    }
+
+    /**
+     * Get the response cache.
+     *
+     * @return the response cache, or null if it is disabled.
+     */
+    public static ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Enable the single flight of GET / HEAD request, it is disabled by
+     * default. The concurrent identical requests share one transfer, and each
+     * of them gets its own copy of response; the content is read into memory.
+     *
+     * @param enable     enable or disable.
+     * @param keyHeaders the request headers in the key besides method and url,
+     *                   e.g. "Authorization", "Accept".
+     */
+    public static void setSingleFlight(boolean enable, String... keyHeaders) {
+        singleFlightHeaders = enable ? (keyHeaders == null ? new String[0] : keyHeaders.clone()) : null;
+    }
+
+    /**
+     * Set the max in-flight requests of every host, the request over the limit
+     * is queued without holding a thread. The request is in flight until the
+     * response headers arrived. The hosts of different ports are limited
+     * separately.
+     *
+     * @param maxInFlight the max in-flight requests, 0 is unlimited (default).
+     */
+    public static void setHostLimit(int maxInFlight) {
+        hostLimiter.setMaxInFlight(maxInFlight);
+    }
+
+    /**
+     * Set the max in-flight requests of the host, it overrides
+     * setHostLimit(int).
+     *
+     * @param host        the host, with the port if it is not the default port;
+     *                    e.g. "www.example.com", "127.0.0.1:8080".
+     * @param maxInFlight the max in-flight requests, 0 is unlimited, -1 to use
+     *                    the default.
+     */
+    public static void setHostLimit(String host, int maxInFlight) {
+        hostLimiter.setMaxInFlight(host, maxInFlight);
+    }
+
+    /**
+     * Set the token bucket rate limit of every host, the request over the rate
+     * is queued without holding a thread.
+     *
+     * @param permitsPerSecond the requests per second, 0 is unlimited
+     *                         (default).
+     * @param burst            the max requests in burst.
+     */
+    public static void setRateLimit(double permitsPerSecond, int burst) {
+        hostLimiter.setRate(permitsPerSecond, burst);
+    }
+
     /***
      * The network transfer in fetch style.
      *
@@ -49,6 +189,20 @@ public class Net {
         return fetch(req);
     }
 
+    /***
+     * The network transfer in fetch style, the blocking network io runs in the
+     * specified executor.
+     *
+     * @param url      request url.
+     * @param executor the executor to run network io, null to use
+     *                 Febs.getExecutorService().
+     * @return Promise object
+     */
+    public Promise<Response> fetch(String url, Executor executor) {
+        Request req = new Request(url, null, "get");
+        return fetch(req, executor);
+    }
+
     /**
      * The network transfer in fetch style.
      *
@@ -56,13 +210,389 @@ public class Net {
      * @return Promise object
      */
     public Promise<Response> fetch(Request request) {
-        return new Promise<>((IResolve<Response> resolve, IReject reject) -> {
+        return fetch(request, null);
+    }
+
+    /**
+     * The network transfer in fetch style, the blocking network io runs in the
+     * specified executor.
+     *
+     * @param request  request parameter.
+     * @param executor the executor to run network io, null to use
+     *                 Febs.getExecutorService().
+     * @return Promise object
+     */
+    @SuppressWarnings("unchecked")
+    public Promise<Response> fetch(Request request, Executor executor) {
+        ResponseCache cache = responseCache;
+        if (cache == null || !cache.isCacheable(request)) {
+            return transferWithRetry(request, executor);
+        }
+
+        Response cached = cache.lookup(request);
+        if (cached != null) {
+            Promise<Response> promise = new Promise<>((IResolve<Response> resolve, IReject reject) -> {
+                resolve.execute(cached);
+            });
+            promise.setExecutor(executor);
+            return promise;
+        }
+
+        // revalidate the stale response, or store the new response.
+        return (Promise<Response>) transferWithRetry(cache.revalidate(request), executor).then(res -> {
+            return cache.update(request, res);
+        });
+    }
+
+    /**
+     * Transfer with the retry policy and hedged request of request.
+     */
+    private Promise<Response> transferWithRetry(Request request, Executor executor) {
+        if (request.getRetryPolicy() == null && request.getHedgeDelay() <= 0) {
+            return transfer(request, executor);
+        }
+        return RetryFetch.fetch(request, req -> transfer(req, executor));
+    }
+
+    /**
+     * Transfer in the engine, the identical requests share one transfer if
+     * single flight is enabled.
+     */
+    private Promise<Response> transfer(Request request, Executor executor) {
+        String key = singleFlightKey(request);
+        if (key != null) {
+            return share(key, request, executor);
+        }
+        return transferLimited(request, executor);
+    }
+
+    /**
+     * Transfer after the permit of host limiter is acquired.
+     */
+    private Promise<Response> transferLimited(Request request, Executor executor) {
+        String host = hostOf(request.getUrl());
+        if (host == null || !hostLimiter.isEnabled()) {
+            return transferDirect(request, executor);
+        }
+
+        AtomicReference<PromiseFuture> running = new AtomicReference<>();
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        Promise<Response> promise = new Promise<>((IResolve<Response> resolve, IReject reject) -> {
+            hostLimiter.acquire(host, () -> {
+                if (aborted.get()) {
+                    hostLimiter.release(host);
+                    return;
+                }
+                AtomicBoolean released = new AtomicBoolean(false);
+                PromiseFuture future;
+                try {
+                    future = transferDirect(request, executor).then(res -> {
+                        if (released.compareAndSet(false, true)) {
+                            hostLimiter.release(host);
+                        }
+                        resolve.execute(res);
+                    }).fail(e -> {
+                        if (released.compareAndSet(false, true)) {
+                            hostLimiter.release(host);
+                        }
+                        reject.execute(e);
+                    }).execute();
+                } catch (Exception e) {
+                    // the transfer is not started, e.g. rejected by the executor.
+                    if (released.compareAndSet(false, true)) {
+                        hostLimiter.release(host);
+                        try {
+                            reject.execute(e);
+                        } catch (Exception ex) {
+                            // the chain handles the exception itself.
+                        }
+                    }
+                    return;
+                }
+                running.set(future);
+                if (aborted.get()) {
+                    future.cancel(true);
+                }
+            });
+        }, true);
+        promise.setCancelListener(() -> {
+            aborted.set(true);
+            PromiseFuture future = running.get();
+            if (future != null) {
+                future.cancel(true);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * The blocking transfer of HttpURLConnection. In the worker of ForkJoinPool
+     * it's a managed block, the pool adds a worker to keep the parallelism.
+     */
+    private static Response requestBlocking(Request request, Consumer<HttpURLConnection> onOpen) throws Exception {
+        if (!ForkJoinTask.inForkJoinPool()) {
+            return Transfer.request(request, onOpen);
+        }
+
+        Object[] result = new Object[2];
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean done = false;
+
+            @Override
+            public boolean block() {
+                try {
+                    result[0] = Transfer.request(request, onOpen);
+                } catch (Exception e) {
+                    result[1] = e;
+                }
+                this.done = true;
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return this.done;
+            }
+        });
+        if (result[1] != null) {
+            throw (Exception) result[1];
+        }
+        return (Response) result[0];
+    }
+
+    /**
+     * Record the metrics of one transfer.
+     *
+     * @param resp the response, or null if the transfer failed.
+     */
+    private static void meter(IMetrics metrics, Request request, long start, Response resp) {
+        if (metrics == IMetrics.NOOP) {
+            return;
+        }
+        String host = hostOf(request.getUrl());
+        long nanos = System.nanoTime() - start;
+        if (resp == null) {
+            metrics.fetchFailed(host, nanos);
+            return;
+        }
+        metrics.fetchCompleted(host, resp.getStatusCode(), nanos);
+        resp.setContentListener(bytes -> metrics.fetchBytes(host, bytes));
+    }
+
+    /**
+     * The key of host to limit and measure: the host, with the port if it is
+     * not the default port of scheme; e.g. "www.example.com", "127.0.0.1:8080".
+     */
+    private static String hostOf(String url) {
+        try {
+            URL u = new URL(url);
+            int port = u.getPort();
+            if (port == -1 || port == u.getDefaultPort()) {
+                return u.getHost();
+            }
+            return u.getHost() + ":" + port;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private Promise<Response> transferDirect(Request request, Executor executor) {
+        String type = getEngine();
+        if (!ENGINE_URL_CONNECTION.equals(type)) {
+            return fetchAsync(request, executor, ENGINE_HTTP2.equals(type));
+        }
+
+        AtomicReference<HttpURLConnection> connection = new AtomicReference<>();
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        Promise<Response> promise = new Promise<>((IResolve<Response> resolve, IReject reject) -> {
+            IMetrics metrics = Febs.getMetrics();
+            long start = metrics == IMetrics.NOOP ? 0 : System.nanoTime();
+            Response resp;
             try {
-                Response resp = Transfer.request(request);
-                resolve.execute(resp);
+                resp = requestBlocking(request, conn -> {
+                    connection.set(conn);
+                    // cancelled before the connection is opened.
+                    if (aborted.get()) {
+                        conn.disconnect();
+                    }
+                });
             } catch (Exception e) {
+                meter(metrics, request, start, null);
                 reject.execute(e);
+                return;
+            }
+            meter(metrics, request, start, resp);
+            resolve.execute(resp);
+        });
+        promise.setExecutor(executor);
+        // abort the transfer when the promise is cancelled or timeout.
+        promise.setCancelListener(() -> {
+            aborted.set(true);
+            HttpURLConnection conn = connection.get();
+            if (conn != null) {
+                conn.disconnect();
             }
         });
+        return promise;
+    }
+
+    /**
+     * Fetch on the HttpClient engine, no thread is held while waiting. The
+     * promise is settled in the executor after the io callback, so the chain
+     * doesn't run in the io thread of HttpClient.
+     */
+    private Promise<Response> fetchAsync(Request request, Executor executor, boolean http2) {
+        AtomicReference<CompletableFuture<?>> transfer = new AtomicReference<>();
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        Promise<Response> promise = new Promise<>((IResolve<Response> resolve, IReject reject) -> {
+            IMetrics metrics = Febs.getMetrics();
+            long start = metrics == IMetrics.NOOP ? 0 : System.nanoTime();
+            CompletableFuture<?> future = HttpClientTransfer.request(request, http2, (resp, e) -> {
+                meter(metrics, request, start, resp);
+                if (resp != null && aborted.get()) {
+                    resp.abort();
+                    return;
+                }
+                Runnable task = () -> {
+                    try {
+                        if (e != null) {
+                            reject.execute(e);
+                        } else {
+                            resolve.execute(resp);
+                        }
+                    } catch (Exception ex) {
+                        // the chain handles the exception itself.
+                    }
+                };
+                try {
+                    (executor != null ? executor : Febs.getExecutorService()).execute(task);
+                } catch (RejectedExecutionException ex) {
+                    task.run();
+                }
+            });
+            transfer.set(future);
+            // cancelled before the transfer is started.
+            if (aborted.get()) {
+                future.cancel(true);
+            }
+        }, true);
+        promise.setExecutor(executor);
+        // abort the transfer when the promise is cancelled or timeout.
+        promise.setCancelListener(() -> {
+            aborted.set(true);
+            CompletableFuture<?> future = transfer.get();
+            if (future != null) {
+                future.cancel(true);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * The key of single flight: method, url and the key headers.
+     *
+     * @return the key, or null if the request can't be shared.
+     */
+    private static String singleFlightKey(Request request) {
+        String[] keyHeaders = singleFlightHeaders;
+        if (keyHeaders == null || request.getRequestBody() != null) {
+            return null;
+        }
+        String method = null == request.getMethod() || request.getMethod().isEmpty() ? "GET"
+                : request.getMethod().toUpperCase();
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder(method).append(' ').append(request.getUrl());
+        for (String header : keyHeaders) {
+            key.append('\n').append(header).append(": ").append(request.getHeaders(header));
+        }
+        if (!request.isDecompress()) {
+            key.append("\nraw");
+        }
+        return key.toString();
+    }
+
+    /**
+     * Join the flight of key, or start a new flight.
+     */
+    private Promise<Response> share(String key, Request request, Executor executor) {
+        return new Promise<>((IResolve<Response> resolve, IReject reject) -> {
+            BiConsumer<Response, Exception> waiter = (resp, e) -> {
+                try {
+                    if (e != null) {
+                        reject.execute(e);
+                    } else {
+                        resolve.execute(resp.copy());
+                    }
+                } catch (Exception ex) {
+                    // the chain handles the exception itself.
+                }
+            };
+
+            for (;;) {
+                Flight flight = flights.get(key);
+                if (flight != null && flight.join(waiter)) {
+                    return;
+                }
+                if (flight != null) {
+                    // finished, it is being removed.
+                    flights.remove(key, flight);
+                    continue;
+                }
+
+                Flight created = new Flight();
+                created.join(waiter);
+                if (flights.putIfAbsent(key, created) != null) {
+                    continue;
+                }
+                try {
+                    transferLimited(request, executor).then(res -> {
+                        res.buffer();
+                        flights.remove(key, created);
+                        created.finish(res, null);
+                    }).fail(e -> {
+                        flights.remove(key, created);
+                        created.finish(null, e);
+                    }).execute();
+                } catch (Exception e) {
+                    // the transfer is not started, the later requests must not join it.
+                    flights.remove(key, created);
+                    created.finish(null, e);
+                }
+                return;
+            }
+        }, true);
+    }
+
+    /**
+     * The shared transfer.
+     */
+    private static final class Flight {
+        private List<BiConsumer<Response, Exception>> waiters = new ArrayList<>();
+
+        synchronized boolean join(BiConsumer<Response, Exception> waiter) {
+            if (this.waiters == null) {
+                return false;
+            }
+            this.waiters.add(waiter);
+            return true;
+        }
+
+        void finish(Response resp, Exception e) {
+            List<BiConsumer<Response, Exception>> list;
+            synchronized (this) {
+                list = this.waiters;
+                this.waiters = null;
+            }
+            if (list == null) {
+                // finished already.
+                return;
+            }
+            for (BiConsumer<Response, Exception> waiter : list) {
+                waiter.accept(resp, e);
+            }
+        }
     }
 }
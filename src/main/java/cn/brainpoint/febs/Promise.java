@@ -7,17 +7,26 @@
 package cn.brainpoint.febs;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import cn.brainpoint.febs.exception.FebsException;
 import cn.brainpoint.febs.exception.FebsRuntimeException;
+import cn.brainpoint.febs.libs.metrics.IMetrics;
 import cn.brainpoint.febs.libs.promise.IExecute;
 import cn.brainpoint.febs.libs.promise.IFinish;
 import cn.brainpoint.febs.libs.promise.IPromise;
@@ -50,7 +59,25 @@ public class Promise<T> implements java.lang.Comparable<T>, IPromise {
     public static final String STATUS_PENDING = "pending";
     public static final String STATUS_FULFILLED = "fulfilled";
     public static final String STATUS_REJECTED = "rejected";
-    private static ConcurrentSkipListSet<Object> globalObjectSet = new ConcurrentSkipListSet<>();
+
+    /**
+     * Not executed.
+     */
+    public static final int STATE_PENDING = 0;
+    /**
+     * Executed, wait for resolve / reject.
+     */
+    public static final int STATE_RUNNING = 1;
+    /**
+     * The chain is running after resolve / reject.
+     */
+    public static final int STATE_SETTLING = 2;
+    public static final int STATE_FULFILLED = 3;
+    public static final int STATE_REJECTED = 4;
+    private static final LongAdder createdCount = new LongAdder();
+    private static final LongAdder settledCount = new LongAdder();
+    private static volatile boolean leakTracking = false;
+    private static final Set<Promise<?>> globalObjectSet = ConcurrentHashMap.newKeySet();
     private static IReject globalUncaughtExceptionHandler;
 
     private Runnable onSuccessListenerRunnable;
@@ -62,16 +89,59 @@ public class Promise<T> implements java.lang.Comparable<T>, IPromise {
     private IFinish onFinishListener;
     private IExecute<T> onExecuteListener;
     private Promise<?> child;
-    private String status = STATUS_PENDING;
+    private volatile int inState = STATE_PENDING;
     private Object tag;
     private Promise<?> ancestor;
-    private boolean inExecute = false;
-    private Object inTag; // internal use.
-    private Object inResult;
-    private Object inResultTmp; // 结果先存储至临时位置.
-    private CompletableFuture<?> inCf;
-    private Lock inLock;
-    private Condition inCondition;
+    private volatile Object inResult; // published by the write of state.
+    private boolean inDeferred = false; // settled by resolve / reject, not by the return of listener.
+    private boolean inTracked = false;
+    private Executor inExecutor; // null to use Febs.getExecutorService().
+    private volatile Waiter inWaiters;
+    private long inTimeout = 0; // in millisecond, 0 is no timeout.
+    private ScheduledFuture<?> inTimer;
+    private volatile Thread inRunner; // the thread running listener.
+    private volatile boolean inInterrupted = false;
+    private volatile boolean inCancelled = false;
+    private volatile Runnable inCancelListener;
+    private volatile Promise<?> inNested; // the nested promise the chain is waiting for.
+    private long inStartTime = 0; // System.nanoTime() of execute() if metrics is enabled.
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Promise> STATE = AtomicIntegerFieldUpdater
+            .newUpdater(Promise.class, "inState");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Promise, Waiter> WAITERS = AtomicReferenceFieldUpdater
+            .newUpdater(Promise.class, Waiter.class, "inWaiters");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Promise, Thread> RUNNER = AtomicReferenceFieldUpdater
+            .newUpdater(Promise.class, Thread.class, "inRunner");
+
+    /**
+     * The continuation of a chain, call after the chain finished.
+     */
+    private interface ISettled {
+        void execute(Object value, Exception error);
+    }
+
+    /**
+     * The node of waiter stack: a thread blocked in PromiseFuture.get(), or a
+     * continuation.
+     */
+    static final class Waiter {
+        volatile Thread thread;
+        final ISettled listener;
+        Waiter next;
+
+        Waiter(Thread thread, ISettled listener) {
+            this.thread = thread;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * The head of waiter stack after the chain finished.
+     */
+    private static final Waiter SETTLED = new Waiter(null, null);
 
     private static class PromiseExecutor<T> implements IPromise {
         private Promise<T> p;
@@ -90,6 +160,11 @@ public class Promise<T> implements java.lang.Comparable<T>, IPromise {
             return this.p.execute();
         }
 
+        @Override
+        public PromiseFuture executeOn(Executor executor) {
+            return this.p.executeOn(executor);
+        }
+
         @Override
         public String getStatus() {
             return this.p.getStatus();
@@ -106,8 +181,42 @@ public class Promise<T> implements java.lang.Comparable<T>, IPromise {
         }
     }
 
+    /**
+     * Get the debug information: the count of promise not finished, and the size
+     * of tracked promise set if leak tracking is enabled.
+     *
+     * @return the debug information.
+     */
     public static String dumpDebug() {
-        return "globalObjectSet: " + globalObjectSet.size();
+        String info = "pending: " + (createdCount.sum() - settledCount.sum());
+        if (leakTracking) {
+            info += ", globalObjectSet: " + globalObjectSet.size();
+        }
+        return info;
+    }
+
+    /**
+     * Track every promise object not finished in a global set, for finding the
+     * promise which is never executed. Default is disabled, only the counters
+     * are kept.
+     *
+     * @param enable enable or disable leak tracking.
+     */
+    public static void setLeakTracking(boolean enable) {
+        leakTracking = enable;
+        if (!enable) {
+            globalObjectSet.clear();
+        }
+    }
+
+    /**
+     * Get the promise objects not finished, it is empty if leak tracking is
+     * disabled.
+     *
+     * @return the promise objects not finished.
+     */
+    public static Set<Promise<?>> getTrackedObjects() {
+        return Collections.unmodifiableSet(globalObjectSet);
     }
 
     /**
@@ -137,65 +246,39 @@ public class Promise<T> implements java.lang.Comparable<T>, IPromise {
         }
 
         if (!list.isEmpty()) {
+            // settled by the last member, don't wait on a worker thread.
             return new Promise<>(new IExecute<Object[]>() {
                 @Override
                 public void execute(IResolve<Object[]> resolve, IReject reject) throws Exception {
-                    AtomicReference<Exception> ex = new AtomicReference<>(null);
-                    // AtomicInteger completedCount = new AtomicInteger(0);
                     Object[] result = new Object[list.size()];
+                    AtomicInteger remaining = new AtomicInteger(list.size());
+                    AtomicBoolean rejected = new AtomicBoolean(false);
 
-                    for (int i = 0; i < list.size(); i++) {
-                        if (ex.get() != null) {
-                            reject.execute(ex.get());
-                            return;
-                        }
-
-                        Promise<?> promise;
-                        if (list.get(i).isExecutor()) {
-                            promise = ((PromiseExecutor<?>) list.get(i)).p;
-                        } else {
-                            promise = (Promise<?>) list.get(i);
-                        }
-
-                        // can call execute
-                        Promise<?> ancestor = promise.ancestor == null ? promise : promise.ancestor;
-                        if (!ancestor.status.equals(STATUS_PENDING) || ancestor.inExecute) {
-                            reject.execute(new FebsRuntimeException("Promise is not in pending status"));
-                            return;
-                        }
-
-                        try {
-                            promise.inTag = i;
-                            promise.then(res -> {
-                                result[(int) promise.inTag] = res;
-                                // completedCount.getAndIncrement();
-                            }).fail(e -> {
-                                ex.set(e);
-                            }).execute().get();
-                        } catch (ExecutionException e) {
-                            ex.set(e);
-                            break;
-                        }
-                    } // for.
-
-                    if (ex.get() != null) {
-                        reject.execute(ex.get());
+                    Promise<?>[] members = pendingMembers(list, reject);
+                    if (members == null) {
                         return;
                     }
 
-                    // if (completedCount.get() == result.length) {
-                    resolve.execute(result);
-                    // }
+                    // 所有成员同时执行, 最后一个完成时 resolve, 第一个失败时 reject.
+                    for (int i = 0; i < members.length; i++) {
+                        final int index = i;
+                        members[i].then(res -> {
+                            result[index] = res;
+                            if (remaining.decrementAndGet() == 0 && !rejected.get()) {
+                                resolve.execute(result);
+                            }
+                        }).fail(e -> {
+                            if (rejected.compareAndSet(false, true)) {
+                                reject.execute(e);
+                            }
+                        }).execute();
+                    } // for.
                 }
-            });
+            }, true);
         } else {
-            try {
-                Promise<Object[]> p = new Promise<>();
-                p.resolve(new Object[] {});
-                return p;
-            } catch (Exception e) {
-                throw new FebsRuntimeException(e);
-            }
+            return new Promise<>((IResolve<Object[]> resolve, IReject reject) -> {
+                resolve.execute(new Object[] {});
+            });
         }
     }
 
@@ -216,6 +299,245 @@ public class Promise<T> implements java.lang.Comparable<T>, IPromise {
         return all(Arrays.asList(list));
     }
 
+    /**
+     * Promise.allSettled({}) .then(...)
+     *
+     * Execute all promise object at the same time, it is resolved with the
+     * status and result of each member after the last one settled, it is never
+     * rejected by the members.
+     *
+     * !Warning: All promise object cannot call execute() function.
+     *
+     * @param list Promise object set.
+     * @return Promise
+     */
+    public static Promise<PromiseSettled> allSettled(List<IPromise> list) {
+
+        if (list == null) {
+            throw new FebsRuntimeException("Promise list should not be empty!");
+        }
+
+        return new Promise<>(new IExecute<PromiseSettled>() {
+            @Override
+            public void execute(IResolve<PromiseSettled> resolve, IReject reject) throws Exception {
+                PromiseSettled result = new PromiseSettled(list.size());
+                if (list.isEmpty()) {
+                    resolve.execute(result);
+                    return;
+                }
+                AtomicInteger remaining = new AtomicInteger(list.size());
+
+                Promise<?>[] members = pendingMembers(list, reject);
+                if (members == null) {
+                    return;
+                }
+
+                for (int i = 0; i < members.length; i++) {
+                    final int index = i;
+                    members[i].then(res -> {
+                        result.set(index, STATUS_FULFILLED, res);
+                        if (remaining.decrementAndGet() == 0) {
+                            resolve.execute(result);
+                        }
+                    }).fail(e -> {
+                        result.set(index, STATUS_REJECTED, e);
+                        if (remaining.decrementAndGet() == 0) {
+                            resolve.execute(result);
+                        }
+                    }).execute();
+                } // for.
+            }
+        }, true);
+    }
+
+    /**
+     * Promise.allSettled({}) .then(...)
+     *
+     * !Warning: All promise object cannot call execute() function.
+     *
+     * @param list Promise object set.
+     * @return Promise
+     */
+    public static Promise<PromiseSettled> allSettled(IPromise... list) {
+
+        if (list == null) {
+            throw new FebsRuntimeException("Promise list should not be empty!");
+        }
+
+        return allSettled(Arrays.asList(list));
+    }
+
+    /**
+     * Promise.any({}) .then(...)
+     *
+     * Execute all promise object at the same time, it is resolved with the
+     * first fulfilled one and the others are cancelled. It is rejected after
+     * all members rejected, the errors are the suppressed exceptions.
+     *
+     * !Warning: All promise object cannot call execute() function.
+     *
+     * @param list Promise object set.
+     * @return Promise
+     */
+    public static Promise<Object> any(List<IPromise> list) {
+
+        if (list == null || list.isEmpty()) {
+            throw new FebsRuntimeException("Promise list should not be empty!");
+        }
+
+        return new Promise<>(new IExecute<Object>() {
+            @Override
+            public void execute(IResolve<Object> resolve, IReject reject) throws Exception {
+                Exception[] errors = new Exception[list.size()];
+                AtomicInteger remaining = new AtomicInteger(list.size());
+                AtomicBoolean settled = new AtomicBoolean(false);
+
+                Promise<?>[] members = pendingMembers(list, reject);
+                if (members == null) {
+                    return;
+                }
+
+                for (int i = 0; i < members.length && !settled.get(); i++) {
+                    final int index = i;
+                    members[i].then(res -> {
+                        if (settled.compareAndSet(false, true)) {
+                            cancelMembers(members, index);
+                            resolve.execute(res);
+                        }
+                    }).fail(e -> {
+                        errors[index] = e;
+                        if (remaining.decrementAndGet() == 0 && settled.compareAndSet(false, true)) {
+                            FebsRuntimeException err = new FebsRuntimeException("All promises were rejected");
+                            for (Exception error : errors) {
+                                err.addSuppressed(error);
+                            }
+                            reject.execute(err);
+                        }
+                    }).execute();
+                } // for.
+            }
+        }, true);
+    }
+
+    /**
+     * Promise.any({}) .then(...)
+     *
+     * !Warning: All promise object cannot call execute() function.
+     *
+     * @param list Promise object set.
+     * @return Promise
+     */
+    public static Promise<Object> any(IPromise... list) {
+
+        if (list == null || list.length <= 0) {
+            throw new FebsRuntimeException("Promise list should not be empty!");
+        }
+
+        return any(Arrays.asList(list));
+    }
+
+    /**
+     * Promise.race({}) .then(...)
+     *
+     * Execute all promise object at the same time, it is settled like the
+     * first settled one and the others are cancelled.
+     *
+     * !Warning: All promise object cannot call execute() function.
+     *
+     * @param list Promise object set.
+     * @return Promise
+     */
+    public static Promise<Object> race(List<IPromise> list) {
+
+        if (list == null || list.isEmpty()) {
+            throw new FebsRuntimeException("Promise list should not be empty!");
+        }
+
+        return new Promise<>(new IExecute<Object>() {
+            @Override
+            public void execute(IResolve<Object> resolve, IReject reject) throws Exception {
+                AtomicBoolean settled = new AtomicBoolean(false);
+
+                Promise<?>[] members = pendingMembers(list, reject);
+                if (members == null) {
+                    return;
+                }
+
+                for (int i = 0; i < members.length && !settled.get(); i++) {
+                    final int index = i;
+                    members[i].then(res -> {
+                        if (settled.compareAndSet(false, true)) {
+                            cancelMembers(members, index);
+                            resolve.execute(res);
+                        }
+                    }).fail(e -> {
+                        if (settled.compareAndSet(false, true)) {
+                            cancelMembers(members, index);
+                            reject.execute(e);
+                        }
+                    }).execute();
+                } // for.
+            }
+        }, true);
+    }
+
+    /**
+     * Promise.race({}) .then(...)
+     *
+     * !Warning: All promise object cannot call execute() function.
+     *
+     * @param list Promise object set.
+     * @return Promise
+     */
+    public static Promise<Object> race(IPromise... list) {
+
+        if (list == null || list.length <= 0) {
+            throw new FebsRuntimeException("Promise list should not be empty!");
+        }
+
+        return race(Arrays.asList(list));
+    }
+
+    /**
+     * Check all members before starting any of them.
+     *
+     * @return the members, or null if one of them is not in pending status and
+     *         the combinator is rejected.
+     */
+    private static Promise<?>[] pendingMembers(List<IPromise> list, IReject reject) throws Exception {
+        Promise<?>[] members = new Promise<?>[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            Promise<?> promise;
+            if (list.get(i).isExecutor()) {
+                promise = ((PromiseExecutor<?>) list.get(i)).p;
+            } else {
+                promise = (Promise<?>) list.get(i);
+            }
+
+            // can call execute
+            Promise<?> ancestor = promise.ancestor == null ? promise : promise.ancestor;
+            if (ancestor.inState != STATE_PENDING) {
+                reject.execute(new FebsRuntimeException("Promise is not in pending status"));
+                return null;
+            }
+            members[i] = promise;
+        }
+        return members;
+    }
+
+    /**
+     * Cancel the members except the winner, the member not started yet is left
+     * pending, it isn't started after the combinator settled.
+     */
+    private static void cancelMembers(Promise<?>[] members, int winner) {
+        for (int i = 0; i < members.length; i++) {
+            Promise<?> ancestor = members[i].ancestor == null ? members[i] : members[i].ancestor;
+            if (i != winner && ancestor.inState != STATE_PENDING) {
+                ancestor.cancel(new CancellationException("Promise cancelled"), true);
+            }
+        }
+    }
+
     @Override
     public boolean isExecutor() {
         return false;
@@ -228,60 +550,122 @@ public class Promise<T> implements java.lang.Comparable<T>, IPromise {
      */
     @Override
     public String getStatus() {
-        return this.ancestor == null ? this.status : this.ancestor.status;
+        switch (this.getState()) {
+            case STATE_FULFILLED:
+                return STATUS_FULFILLED;
+            case STATE_REJECTED:
+                return STATUS_REJECTED;
+            default:
+                return STATUS_PENDING;
+        }
+    }
+
+    /**
+     * Get the current state of promise, one of STATE_PENDING, STATE_RUNNING,
+     * STATE_SETTLING, STATE_FULFILLED and STATE_REJECTED.
+     *
+     * @return the state
+     */
+    public int getState() {
+        return this.ancestor == null ? this.inState : this.ancestor.inState;
+    }
+
+    /**
+     * Whether the chain is finished.
+     *
+     * @return true if fulfilled or rejected.
+     */
+    public boolean isDone() {
+        return this.getState() >= STATE_FULFILLED;
     }
 
     public Object getResult() {
-        if (!this.getStatus().equals(STATUS_FULFILLED)) {
+        if (this.getState() != STATE_FULFILLED) {
             return null;
         }
 
-        getLock().lock();
-        Object ret = this.ancestor == null ? this.inResult : this.ancestor.inResult;
-        getLock().unlock();
-        return ret;
+        return this.ancestor == null ? this.inResult : this.ancestor.inResult;
     }
 
-    private void setResult() {
-        getLock().lock();
-        if (this.ancestor == null) {
-            if (this.inResult == null) {
-                this.inResult = this.inResultTmp;
-                this.inResultTmp = null;
-            }
-        } else {
-            if (this.ancestor.inResult == null) {
-                this.ancestor.inResult = this.ancestor.inResultTmp;
-                this.ancestor.inResultTmp = null;
-            }
+    /**
+     * Get the exception of the rejected chain.
+     *
+     * @return the exception, or null if the chain is not rejected.
+     */
+    Exception getReason() {
+        if (this.getState() != STATE_REJECTED) {
+            return null;
         }
-        getLock().unlock();
+
+        return (Exception) (this.ancestor == null ? this.inResult : this.ancestor.inResult);
     }
 
-    private void setResultTmp(Object obj) {
-        getLock().lock();
-        if (this.ancestor == null) {
-            this.inResultTmp = obj;
-        } else {
-            this.ancestor.inResultTmp = obj;
-        }
-        getLock().unlock();
+    /**
+     * Push the waiter into the waiter stack of ancestor.
+     *
+     * @param waiter the waiter.
+     * @return false if the chain is finished.
+     */
+    boolean pushWaiter(Waiter waiter) {
+        Promise<?> ancestor = this.ancestor == null ? this : this.ancestor;
+        Waiter head;
+        do {
+            head = ancestor.inWaiters;
+            if (head == SETTLED) {
+                return false;
+            }
+            waiter.next = head;
+        } while (!WAITERS.compareAndSet(ancestor, head, waiter));
+        return true;
     }
 
-    private Lock getLock() {
-        if (this.ancestor == null) {
-            if (inLock == null) {
-                inLock = new ReentrantLock();
+    /**
+     * Remove the waiter leaving before the chain finished, and the other dead
+     * waiters in the stack; so the waiter stack doesn't grow if the future is
+     * polled with timeout.
+     *
+     * @param waiter the waiter of the thread.
+     */
+    void removeWaiter(Waiter waiter) {
+        waiter.thread = null;
+        Promise<?> ancestor = this.ancestor == null ? this : this.ancestor;
+        retry: for (;;) {
+            Waiter pred = null;
+            Waiter q = ancestor.inWaiters;
+            if (q == SETTLED) {
+                return;
             }
-            return inLock;
-        } else {
-            if (this.ancestor.inLock == null) {
-                this.ancestor.inLock = new ReentrantLock();
+            while (q != null) {
+                Waiter s = q.next;
+                if (q.thread != null || q.listener != null) {
+                    pred = q;
+                } else if (pred != null) {
+                    pred.next = s;
+                    if (pred.thread == null && pred.listener == null) {
+                        // pred is removed by other thread.
+                        continue retry;
+                    }
+                } else if (!WAITERS.compareAndSet(ancestor, q, s)) {
+                    continue retry;
+                }
+                q = s;
             }
-            return this.ancestor.inLock;
+            return;
         }
     }
 
+    /**
+     * The count of waiters in the stack.
+     */
+    int waiterCount() {
+        Promise<?> ancestor = this.ancestor == null ? this : this.ancestor;
+        int count = 0;
+        for (Waiter w = ancestor.inWaiters; w != null && w != SETTLED; w = w.next) {
+            count++;
+        }
+        return count;
+    }
+
     @Override
     public Object getTag() {
         return this.ancestor == null ? this.tag : this.ancestor.tag;
@@ -314,7 +698,7 @@ public class Promise<T> implements java.lang.Comparable<T>, IPromise {
      * Construct a promise.
      */
     public Promise() {
-        globalObjectSet.add(this);
+        this.track();
         this.onExecuteListener = null;
     }
 
@@ -325,10 +709,39 @@ public class Promise<T> implements java.lang.Comparable<T>, IPromise {
      * @param listener promise object.
      */
     public Promise(IExecute<T> listener) {
-        globalObjectSet.add(this);
+        this.track();
         this.onExecuteListener = listener;
     }
 
+    private void track() {
+        createdCount.increment();
+        IMetrics metrics = Febs.getMetrics();
+        if (metrics != IMetrics.NOOP) {
+            metrics.promiseCreated();
+        }
+        if (leakTracking) {
+            this.inTracked = true;
+            globalObjectSet.add(this);
+        }
+    }
+
+    /**
+     * Construct a promise in continuation mode.
+     * <code>new Promise((IResolve resolve, IReject reject)-&gt; { callback(()-&gt;resolve.execute(...)); }, true);</code>
+     *
+     * In continuation mode the chain is not finished when the listener returns,
+     * resolve / reject can be called later in any thread, and the chain goes on
+     * in that thread. No worker thread is held while waiting.
+     *
+     * @param listener promise object.
+     * @param deferred true to wait for resolve / reject after the listener
+     *                 returned.
+     */
+    public Promise(IExecute<T> listener, boolean deferred) {
+        this(listener);
+        this.inDeferred = deferred;
+    }
+
     /**
      * execute the promise.
      *
@@ -338,146 +751,410 @@ public class Promise<T> implements java.lang.Comparable<T>, IPromise {
     public PromiseFuture execute() {
         Promise<?> ancestor = this.ancestor == null ? this : this.ancestor;
 
-        if (!ancestor.status.equals(STATUS_PENDING) || ancestor.inExecute) {
+        if (!ancestor.start()) {
             throw new FebsRuntimeException("Promise is not in pending status");
-        } else {
-            ancestor.inExecute = true;
+        }
+
+        return new PromiseFuture(this);
+    }
+
+    /**
+     * execute the promise in the specified executor. The listener of promise
+     * runs in the executor, and the chain goes on in the thread which calls
+     * resolve / reject.
+     *
+     * @param executor the executor to run the listener.
+     * @return Promise interface
+     */
+    @Override
+    public PromiseFuture executeOn(Executor executor) {
+        this.setExecutor(executor);
+        return this.execute();
+    }
+
+    /**
+     * Set the executor to run the listener, it should be called before
+     * execute().
+     *
+     * @param executor the executor, or null to use Febs.getExecutorService().
+     */
+    void setExecutor(Executor executor) {
+        Promise<?> ancestor = this.ancestor == null ? this : this.ancestor;
+        ancestor.inExecutor = executor;
+    }
+
+    /**
+     * Move the ancestor from pending to running, and run the listener in
+     * executor.
+     *
+     * @return false if the promise is not in pending status.
+     */
+    private boolean start() {
+        if (!STATE.compareAndSet(this, STATE_PENDING, STATE_RUNNING)) {
+            return false;
+        }
+        if (Febs.getMetrics() != IMetrics.NOOP) {
+            this.inStartTime = System.nanoTime();
+        }
+
+        if (this.inTimeout > 0) {
+            long timeout = this.inTimeout;
+            this.inTimer = Febs.getScheduledExecutorService().schedule(() -> {
+                Runnable task = () -> this.cancel(
+                        new TimeoutException("Promise timeout: " + timeout + "ms"), true);
+                try {
+                    Febs.getExecutorService().execute(task);
+                } catch (RejectedExecutionException e) {
+                    task.run();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
 
-            if (ancestor.inLock != null || ancestor.inCondition != null) {
-                throw new FebsRuntimeException("Promise lock error");
+        try {
+            Executor executor = this.inExecutor != null ? this.inExecutor : Febs.getExecutorService();
+            executor.execute(new StartTask());
+        } catch (Exception e) {
+            // reject the chain, the fail / finish listeners release the resource, and the
+            // waiters don't block forever.
+            this.startChain(null, e);
+            throw new FebsRuntimeException(e);
+        }
+        return true;
+    }
+
+    /**
+     * The task to run the listener, the chain is rejected if the task is shed
+     * by the full queue.
+     */
+    private final class StartTask implements FebsExecutor.RejectableTask {
+        @Override
+        public void run() {
+            executeListener();
+        }
+
+        @Override
+        public void reject(Exception e) {
+            startChain(null, e);
+        }
+    }
+
+    /**
+     * Run the listener of ancestor, the chain is started by the first call of
+     * resolve / reject.
+     */
+    @SuppressWarnings("unchecked")
+    private void executeListener() {
+        IExecute<Object> listener = (IExecute<Object>) this.onExecuteListener;
+        if (this.inState != STATE_RUNNING) {
+            // cancelled before running.
+            return;
+        }
+
+        this.inRunner = Thread.currentThread();
+        try {
+            if (listener == null) {
+                startChain(null, null);
+                return;
             }
-            // ancestor.inLock = new ReentrantLock();
-            ancestor.inCondition = getLock().newCondition();
 
-            try {
-                ancestor.inCf = CompletableFuture.supplyAsync(() -> {
-                    try {
-                        ancestor.onExecuteListener.execute(res -> {
+            listener.execute(res -> {
+                startChain(res, null);
+                return null;
+            }, e -> {
+                startChain(null, e != null ? e : new FebsException("Promise rejected"));
+                return null;
+            });
+        } catch (Throwable e) {
+            startChain(null, e instanceof Exception ? (Exception) e : new FebsRuntimeException(e));
+            return;
+        } finally {
+            if (RUNNER.getAndSet(this, null) == null) {
+                // interrupted by cancel(), wait for the interrupt and clear it, don't leak it to
+                // the next task of this thread.
+                while (!this.inInterrupted) {
+                    Thread.yield();
+                }
+                Thread.interrupted();
+            }
+        }
 
-                            setResultTmp(res);
-                            ancestor.resolve(res);
+        // 非 continuation 模式下, listener 返回即结束.
+        if (!this.inDeferred && STATE.compareAndSet(this, STATE_RUNNING, STATE_SETTLING)) {
+            this.settle(null, null);
+        }
+    }
 
-                            return null;
-                        }, e -> {
-                            setResultTmp(e);
-                            ancestor.reject(e);
-                            // setResultTmp(e); don't do it
+    private void startChain(Object value, Exception error) {
+        if (STATE.compareAndSet(this, STATE_RUNNING, STATE_SETTLING)) {
+            runChain(this, this, value, error, false);
+        }
+    }
 
-                            return null;
-                        });
-                    } catch (Exception e) {
-                        setResultTmp(e);
+    /**
+     * Run the chain from the node with the result of previous node. It returns
+     * when the chain is finished, or suspended by a nested promise; the nested
+     * promise resumes the chain in its own thread.
+     *
+     * @param ancestor    the ancestor of chain.
+     * @param node        the node to run.
+     * @param value       the result of previous node.
+     * @param error       the exception of previous node, or null.
+     * @param handlerDone the then / fail listener of node has been called.
+     */
+    @SuppressWarnings("unchecked")
+    private static void runChain(Promise<?> ancestor, Promise<?> node, Object value, Exception error,
+            boolean handlerDone) {
+        while (node != null) {
+            if (!handlerDone) {
+                boolean handled = false;
+                Object res = null;
+                try {
+                    if (error == null) {
+                        if (node.onSuccessListener != null) {
+                            res = ((IResolve<Object>) node.onSuccessListener).execute(value);
+                            handled = true;
+                        } else if (node.onSuccessListenerNoRet != null) {
+                            ((IResolveNoRet<Object>) node.onSuccessListenerNoRet).execute(value);
+                            handled = true;
+                        } else if (node.onSuccessListenerRunnable != null) {
+                            node.onSuccessListenerRunnable.run();
+                            handled = true;
+                        }
+                    } else {
+                        if (node.onErrorListener != null) {
+                            res = node.onErrorListener.execute(error);
+                            handled = true;
+                        } else if (node.onErrorListenerNoRet != null) {
+                            node.onErrorListenerNoRet.execute(error);
+                            handled = true;
+                        }
+                    }
+                } catch (Throwable e) {
+                    value = null;
+                    error = e instanceof Exception ? (Exception) e : new FebsRuntimeException(e);
+                }
 
-                        throw new FebsRuntimeException(e);
+                if (handled) {
+                    error = null;
+                    value = res;
+                    if (res instanceof Promise) {
+                        // 等待嵌套的 promise 完成后继续, 不阻塞当前线程.
+                        final Promise<?> current = node;
+                        ancestor.inNested = (Promise<?>) res;
+                        ((Promise<?>) res).whenSettled((v, e) -> {
+                            ancestor.inNested = null;
+                            runChain(ancestor, current, v, e, true);
+                        });
+                        return;
                     }
-                    return null;
-                }, Febs.getExecutorService()).handle((res, e) -> {
-                    globalObjectSet.remove(ancestor);
-                    if (e != null) {
+                }
+            }
+            handlerDone = false;
+
+            if (node.onFinishListener != null) {
+                if (error != null && node.child == null) {
+                    FebsException ex = new FebsException("Promise uncaught exception", error);
+                    if (globalUncaughtExceptionHandler != null) {
                         try {
-                            setResultTmp(e);
-                            ancestor.reject((Exception) e);
-                            // setResultTmp(e); don't do it
-                        } catch (Exception ex) {
-                            setResultTmp(ex);
-                            throw new FebsRuntimeException(ex);
-                        } finally {
-                            // release memory
-                            Promise<?> p = ancestor;
-                            p.status = STATUS_REJECTED;
-                            do {
-                                p.inCf = null;
-                                Promise<?> p1 = p.child;
-                                p.child = null;
-                                p = p1;
-                            } while (p != null);
-
-                            setResult();
-                            ancestor.inLock.lock();
-                            ancestor.inCondition.signalAll();
-                            ancestor.inLock.unlock();
+                            globalUncaughtExceptionHandler.execute(ex);
+                        } catch (Exception e) {
+                            // ignore.
                         }
                     }
-                    // 获取最终的结果.
-                    else {
-                        Promise<?> p = ancestor;
-                        if (STATUS_PENDING.equals(p.getStatus())) {
-                            p.status = STATUS_FULFILLED;
-                        }
-
-                        setResult();
-                        do {
-                            p.inCf = null;
-                            Promise<?> p1 = p.child;
-                            p.child = null;
-                            p = p1;
-                        } while (p != null);
-
-                        ancestor.inLock.lock();
-                        ancestor.inCondition.signalAll();
-                        ancestor.inLock.unlock();
+                    error = ex;
+                }
+                try {
+                    node.onFinishListener.execute();
+                } catch (Throwable e) {
+                    if (error == null) {
+                        value = null;
+                        error = e instanceof Exception ? (Exception) e : new FebsRuntimeException(e);
                     }
-                    return null;
-                });
-            } catch (Exception e) {
-                throw new FebsRuntimeException(e);
+                }
             }
+
+            node = node.child;
         }
 
-        return new PromiseFuture(this, ancestor.inLock, ancestor.inCondition);
+        ancestor.settle(value, error);
     }
 
-    private IPromise executeInSync() {
+    /**
+     * Call the listener after the chain of this promise finished. The chain will
+     * be executed if it is not executed.
+     *
+     * @param listener the continuation.
+     */
+    private void whenSettled(ISettled listener) {
         Promise<?> ancestor = this.ancestor == null ? this : this.ancestor;
+        if (ancestor.inState == STATE_PENDING) {
+            try {
+                ancestor.start();
+            } catch (Exception e) {
+                listener.execute(null, e);
+                return;
+            }
+        }
 
-        if (!ancestor.status.equals(STATUS_PENDING) || ancestor.inExecute) {
-            throw new FebsRuntimeException("Promise is not in pending status");
+        if (ancestor.pushWaiter(new Waiter(null, listener))) {
+            return;
+        }
+
+        if (ancestor.inState == STATE_REJECTED) {
+            listener.execute(null, (Exception) ancestor.inResult);
         } else {
-            ancestor.inExecute = true;
-            Exception ee = null;
+            listener.execute(ancestor.inResult, null);
+        }
+    }
 
-            try {
-                ancestor.resolve(null);
-            } catch (Exception e) {
-                ee = e;
+    /**
+     * Finish the chain and wake up the waiting futures.
+     *
+     * @param value the result of chain.
+     * @param error the exception cause in chain, or null.
+     */
+    private void settle(Object value, Exception error) {
+        settledCount.increment();
+        IMetrics metrics = Febs.getMetrics();
+        if (metrics != IMetrics.NOOP) {
+            long nanos = this.inStartTime == 0 ? 0 : System.nanoTime() - this.inStartTime;
+            if (error == null) {
+                metrics.promiseFulfilled(nanos);
+            } else {
+                metrics.promiseRejected(nanos);
             }
+        }
+        if (this.inTracked) {
+            globalObjectSet.remove(this);
+        }
 
-            globalObjectSet.remove(ancestor);
-            if (ee != null) {
-                try {
-                    ancestor.reject(ee);
-                } catch (Exception ex) {
-                    throw new FebsRuntimeException(ex);
-                } finally {
-                    // release memory
-                    Promise<?> p = ancestor;
-                    p.status = STATUS_REJECTED;
-                    do {
-                        p.inCf = null;
-                        Promise<?> p1 = p.child;
-                        p.child = null;
-                        p = p1;
-                    } while (p != null);
-                }
+        this.inResult = error == null ? value : error;
+        this.inState = error == null ? STATE_FULFILLED : STATE_REJECTED;
+        Waiter waiters = WAITERS.getAndSet(this, SETTLED);
+
+        if (this.inTimer != null) {
+            this.inTimer.cancel(false);
+            this.inTimer = null;
+        }
+        this.inCancelListener = null;
+        this.inNested = null;
+
+        // release memory
+        Promise<?> p = this;
+        do {
+            Promise<?> p1 = p.child;
+            p.child = null;
+            p = p1;
+        } while (p != null);
+
+        // wake up the blocked threads first, the continuations may run long.
+        for (Waiter w = waiters; w != null; w = w.next) {
+            Thread thread = w.thread;
+            if (thread != null) {
+                w.thread = null;
+                LockSupport.unpark(thread);
             }
-            // 获取最终的结果.
-            else {
-                Promise<?> p = ancestor;
-                if (STATUS_PENDING.equals(p.getStatus())) {
-                    p.status = STATUS_FULFILLED;
-                }
-                do {
-                    p.inCf = null;
-                    Promise<?> p1 = p.child;
-                    p.child = null;
-                    p = p1;
-                } while (p != null);
+        }
+        for (Waiter w = waiters; w != null; w = w.next) {
+            if (w.listener != null) {
+                w.listener.execute(value, error);
             }
         }
+    }
 
+    /**
+     * Reject the chain with TimeoutException if it is not finished in time after
+     * execute(). The listener is interrupted and the running network transfer is
+     * aborted, like PromiseFuture.cancel(true). It should be called before
+     * execute().
+     *
+     * @param millisecond the timeout, 0 is no timeout.
+     * @return this promise.
+     */
+    public Promise<T> timeout(long millisecond) {
+        Promise<?> ancestor = this.ancestor == null ? this : this.ancestor;
+        ancestor.inTimeout = millisecond;
         return this;
     }
 
+    /**
+     * Set the listener to release the resource when the chain is cancelled, e.g.
+     * disconnect the network connection.
+     *
+     * @param listener the cancel listener.
+     */
+    void setCancelListener(Runnable listener) {
+        Promise<?> ancestor = this.ancestor == null ? this : this.ancestor;
+        ancestor.inCancelListener = listener;
+    }
+
+    /**
+     * Whether the chain is cancelled or timeout.
+     *
+     * @return true if cancelled.
+     */
+    boolean isCancelled() {
+        Promise<?> ancestor = this.ancestor == null ? this : this.ancestor;
+        return ancestor.inCancelled;
+    }
+
+    /**
+     * Cancel the chain, it is rejected with the reason; the fail listeners will
+     * be called in current thread.
+     *
+     * @param reason                the exception of rejection, e.g.
+     *                              CancellationException.
+     * @param mayInterruptIfRunning interrupt the thread running listener.
+     * @return false if the chain is finished or can't be cancelled.
+     */
+    boolean cancel(Exception reason, boolean mayInterruptIfRunning) {
+        Promise<?> ancestor = this.ancestor == null ? this : this.ancestor;
+        if (reason == null) {
+            reason = new CancellationException("Promise cancelled");
+        }
+
+        for (;;) {
+            int state = ancestor.inState;
+            if (state == STATE_PENDING || state == STATE_RUNNING) {
+                if (!STATE.compareAndSet(ancestor, state, STATE_SETTLING)) {
+                    continue;
+                }
+                ancestor.inCancelled = true;
+                if (mayInterruptIfRunning) {
+                    Thread runner = RUNNER.getAndSet(ancestor, null);
+                    if (runner != null) {
+                        runner.interrupt();
+                    }
+                }
+                ancestor.inInterrupted = true;
+                ancestor.abort();
+                runChain(ancestor, ancestor, null, reason, false);
+                return true;
+            } else if (state == STATE_SETTLING) {
+                // the chain is waiting for a nested promise.
+                Promise<?> nested = ancestor.inNested;
+                if (nested != null && nested.cancel(reason, mayInterruptIfRunning)) {
+                    ancestor.inCancelled = true;
+                    return true;
+                }
+                return false;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    private void abort() {
+        Runnable listener = this.inCancelListener;
+        if (listener != null) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                // ignore.
+            }
+        }
+    }
+
     /**
      * After executing asynchronous function the result will be available in the
      * success listener as argument.
@@ -567,172 +1244,4 @@ public class Promise<T> implements java.lang.Comparable<T>, IPromise {
         onFinishListener = listener;
         return new PromiseExecutor<T>(this);
     }
-
-    /**
-     * Call this function with your resultant value, it will be available in
-     * following `then()` function call.
-     *
-     * @param object your resultant value (any type of data you can pass as argument
-     *               e.g. int, String, List, Map, any Java object)
-     * @return This will return the resultant value you passed in the function call
-     * @throws Exception cause in common scene
-     */
-    private void resolve(Object object) {
-        // status = STATUS_FULFILLED;
-        handleSuccess(object);
-    }
-
-    /**
-     * Call this function with your error value, it will be available in following
-     * `fail()` function call.
-     *
-     * @param object your error value (any type of data you can pass as argument
-     *               e.g. int, String, List, Map, any Java object)
-     * @throws Exception cause in common scene
-     */
-    private void reject(Exception object) throws Exception {
-        // status = STATUS_REJECTED;
-        handleError(object);
-    }
-
-    private Object handleSuccessAsyncRun(Object param) {
-
-        try {
-            if (onSuccessListener != null) {
-                Object res = onSuccessListener.execute((T) param);
-                this.setResultTmp(res);
-                handleSuccessAsyncAccept(res);
-            } else if (onSuccessListenerNoRet != null) {
-                onSuccessListenerNoRet.execute((T) param);
-                this.setResultTmp(null);
-                handleSuccessAsyncAccept(null);
-            } else if (onSuccessListenerRunnable != null) {
-                onSuccessListenerRunnable.run();
-                this.setResultTmp(null);
-                handleSuccessAsyncAccept(null);
-            } else if (child != null) {
-                child.handleSuccessAsyncRun(param);
-            } else if (onFinishListener != null) {
-                // Promise ancestor = this.ancestor == null ? this : this.ancestor;
-                // globalObjectSet.remove(ancestor);
-                onFinishListener.execute();
-            }
-            return null;
-        } catch (Exception e) {
-            this.setResultTmp(e);
-            throw new FebsRuntimeException(e);
-        }
-    }
-
-    private void handleSuccessAsyncAccept(Object res) {
-
-        if (res != null) {
-            if (res instanceof Promise) {
-                if (child != null) {
-                    Promise<?> p = (Promise<?>) res;
-                    Promise<?> pChild = p;
-                    while (pChild.child != null) {
-                        pChild = pChild.child;
-                    }
-
-                    Promise<?> ancestor = p.ancestor == null ? p : p.ancestor;
-                    globalObjectSet.remove(ancestor);
-                    p.ancestor = this.ancestor;
-
-                    Promise<?> oldP = child;
-                    child = p;
-                    pChild.child = oldP;
-                } else {
-                    child = (Promise<?>) res;
-                }
-
-                try {
-                    child.executeInSync();
-                } catch (Exception e) {
-                    throw new FebsRuntimeException(e);
-                }
-            } else if (child != null) {
-                try {
-                    child.resolve(res);
-                } catch (Exception e) {
-                    throw new FebsRuntimeException(e);
-                }
-            } else if (onFinishListener != null) {
-                onFinishListener.execute();
-            }
-        } else {
-            if (child != null) {
-                try {
-                    child.resolve(res);
-                } catch (Exception e) {
-                    throw new FebsRuntimeException(e);
-                }
-            } else if (onFinishListener != null) {
-                onFinishListener.execute();
-            }
-        }
-    }
-
-    private void handleSuccess(Object object) {
-        // 在异步线程中, 不重新启动新线程.
-        this.handleSuccessAsyncRun(object);
-    }
-
-    private void handleError(java.lang.Exception object) throws Exception {
-        setResultTmp(object);
-        if (onErrorListener != null || onErrorListenerNoRet != null) {
-            Object res = null;
-            try {
-                if (onErrorListener != null) {
-                    res = onErrorListener.execute(object);
-                } else {
-                    onErrorListenerNoRet.execute(object);
-                }
-            } catch (Exception e) {
-                if (child != null) {
-                    child.reject(object);
-                } else if (onFinishListener != null) {
-                    onFinishListener.execute();
-                }
-            }
-
-            if (res != null) {
-                if (res instanceof Promise) {
-                    if (child != null) {
-                        Promise<?> p = (Promise<?>) res;
-                        Promise<?> pChild = p;
-                        while (pChild.child != null) {
-                            pChild = pChild.child;
-                        }
-
-                        Promise<?> oldP = child;
-                        child = p;
-                        pChild.child = oldP;
-                    } else {
-                        child = (Promise<?>) res;
-                    }
-                    child.resolve(null);
-                } else if (child != null) {
-                    child.resolve(res);
-                } else if (onFinishListener != null) {
-                    onFinishListener.execute();
-                }
-            } else {
-                if (child != null) {
-                    child.resolve(null);
-                } else if (onFinishListener != null) {
-                    onFinishListener.execute();
-                }
-            }
-        } else if (child != null) {
-            child.reject(object);
-        } else if (onFinishListener != null) {
-            FebsException ex = new FebsException("Promise uncaught exception", object);
-            if (globalUncaughtExceptionHandler != null) {
-                globalUncaughtExceptionHandler.execute(ex);
-            }
-            setResultTmp(ex);
-            onFinishListener.execute();
-        }
-    }
 }
@@ -6,107 +6,119 @@
 */
 package cn.brainpoint.febs;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 
 import cn.brainpoint.febs.exception.FebsRuntimeException;
 
 public class PromiseFuture implements Future<Object> {
   private Promise<?> promisePri;
-  private Lock lock;
-  private Condition condition;
 
-  public <T> PromiseFuture(Promise<T> promisePri, Lock lock, Condition condition) {
+  public <T> PromiseFuture(Promise<T> promisePri) {
     this.promisePri = promisePri;
-    this.lock = lock;
-    this.condition = condition;
   }
 
   /**
-   * PromiseFuture cannot be cancel.
+   * Cancel the promise chain, it is rejected with CancellationException and the
+   * fail listeners are called. If the chain is waiting for a nested promise,
+   * the nested promise is cancelled.
    * 
-   * @param mayInterruptIfRunning this value has no effect in this implementation
-   *                              because interrupts are not used to control
-   *                              processing.
+   * @param mayInterruptIfRunning interrupt the thread running the listener of
+   *                              promise, and abort the network transfer.
    * 
    * @return {@code true} if this task is now cancelled
    */
   @Override
   public boolean cancel(boolean mayInterruptIfRunning) {
-    throw new UnsupportedOperationException();
+    return this.promisePri.cancel(new CancellationException("Promise cancelled"), mayInterruptIfRunning);
   }
 
   @Override
   public boolean isCancelled() {
-    return false;
+    return this.promisePri.isCancelled();
   }
 
   @Override
   public boolean isDone() {
-    return Promise.STATUS_FULFILLED.equals(this.promisePri.getStatus());
+    return this.promisePri.isDone();
   }
 
   @Override
   public Object get() throws ExecutionException {
 
-    if (Promise.STATUS_FULFILLED.equals(this.promisePri.getStatus())) {
-      Object ret = this.promisePri.getResult();
-      return ret;
+    if (!this.promisePri.isDone()) {
+      this.await(false, 0L);
     }
 
-    lock.lock();
-    try {
-      while (!Promise.STATUS_REJECTED.equals(this.promisePri.getStatus())) {
-        condition.await();
-        break;
-      }
-
-      Object ret = this.promisePri.getResult();
-      if (ret instanceof Exception) {
-        throw new ExecutionException((Exception) ret);
-      }
-      return ret;
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      throw new FebsRuntimeException(e);
-    } finally {
-      lock.unlock();
-    }
+    return this.report();
   }
 
   @Override
   public Object get(long timeout, TimeUnit unit) throws ExecutionException, TimeoutException {
 
-    if (Promise.STATUS_FULFILLED.equals(this.promisePri.getStatus())) {
-      return this.promisePri.getResult();
+    if (!this.promisePri.isDone()) {
+      if (!this.await(true, unit.toNanos(timeout))) {
+        throw new TimeoutException("get promise result timeout: " + unit.toMillis(timeout) + "ms");
+      }
     }
 
-    lock.lock();
-    try {
-      boolean isNoTimeout = false;
-      while (!Promise.STATUS_REJECTED.equals(this.promisePri.getStatus())) {
-        isNoTimeout = condition.await(timeout, unit);
-        break;
-      }
+    return this.report();
+  }
 
-      if (!isNoTimeout) {
-        throw new TimeoutException("get promise result timeout: " + unit.toMillis(timeout) + "ms");
-      } else {
-        Object ret = this.promisePri.getResult();
-        if (ret instanceof Exception) {
-          throw new ExecutionException((Exception) ret);
+  /**
+   * Park the current thread until the chain finished.
+   *
+   * @param timed true to wait at most nanos.
+   * @param nanos the max time to wait.
+   * @return false if timeout.
+   */
+  private boolean await(boolean timed, long nanos) {
+    Promise.Waiter waiter = new Promise.Waiter(Thread.currentThread(), null);
+    if (!this.promisePri.pushWaiter(waiter)) {
+      return true;
+    }
+
+    long deadline = timed ? System.nanoTime() + nanos : 0L;
+    try {
+      while (!this.promisePri.isDone()) {
+        if (Thread.interrupted()) {
+          Thread.currentThread().interrupt();
+          throw new FebsRuntimeException(new InterruptedException());
+        }
+        if (timed) {
+          nanos = deadline - System.nanoTime();
+          if (nanos <= 0L) {
+            return false;
+          }
+          LockSupport.parkNanos(this, nanos);
+        } else {
+          LockSupport.park(this);
         }
-        return ret;
       }
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      throw new FebsRuntimeException(e);
+      return true;
     } finally {
-      lock.unlock();
+      // don't unpark this thread after leaving, and unlink the waiter.
+      this.promisePri.removeWaiter(waiter);
+    }
+  }
+
+  private Object report() throws ExecutionException {
+    Exception reason = this.promisePri.getReason();
+    if (reason instanceof CancellationException) {
+      throw (CancellationException) reason;
+    }
+    if (reason != null) {
+      throw new ExecutionException(reason);
+    }
+
+    Object ret = this.promisePri.getResult();
+    if (ret instanceof Exception) {
+      throw new ExecutionException((Exception) ret);
     }
+    return ret;
   }
-}
\ No newline at end of file
+}
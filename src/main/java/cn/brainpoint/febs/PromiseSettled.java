@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: lipengxiang
+ * Desc:
+ */
+package cn.brainpoint.febs;
+
+/**
+ * The result of Promise.allSettled(), the status and result of each member in
+ * order.
+ */
+public class PromiseSettled {
+    private final String[] status;
+    private final Object[] results;
+
+    PromiseSettled(int size) {
+        this.status = new String[size];
+        this.results = new Object[size];
+    }
+
+    void set(int index, String status, Object result) {
+        this.results[index] = result;
+        this.status[index] = status;
+    }
+
+    /**
+     * The member count.
+     *
+     * @return the member count.
+     */
+    public int size() {
+        return this.status.length;
+    }
+
+    /**
+     * The status of members, Promise.STATUS_FULFILLED or Promise.STATUS_REJECTED.
+     *
+     * @return the status array.
+     */
+    public String[] getStatus() {
+        return this.status;
+    }
+
+    /**
+     * The results of members, the resolved value or the rejected exception.
+     *
+     * @return the result array.
+     */
+    public Object[] getResults() {
+        return this.results;
+    }
+
+    /**
+     * Whether the member is fulfilled.
+     *
+     * @param index the member index.
+     * @return true if the member is fulfilled.
+     */
+    public boolean isFulfilled(int index) {
+        return Promise.STATUS_FULFILLED.equals(this.status[index]);
+    }
+}
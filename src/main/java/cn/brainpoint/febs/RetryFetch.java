@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import cn.brainpoint.febs.libs.net.Request;
+import cn.brainpoint.febs.libs.net.Response;
+import cn.brainpoint.febs.libs.net.RetryPolicy;
+import cn.brainpoint.febs.libs.promise.IReject;
+import cn.brainpoint.febs.libs.promise.IResolve;
+
+/**
+ * The fetch with retry policy and hedged request. The retry and the hedged
+ * request are scheduled by timer, no thread is held while waiting.
+ *
+ * @author pengxiang.li
+ */
+final class RetryFetch {
+
+    private final Request request;
+    private final Function<Request, Promise<Response>> transfer;
+    private final RetryPolicy policy;
+    private final long hedgeDelay;
+    /**
+     * Whether the request can be sent again, the non-idempotent method is not
+     * retried or hedged unless the policy opts in, and the stream body is
+     * never sent again.
+     */
+    private final boolean retryable;
+
+    private IResolve<Response> resolve;
+    private IReject reject;
+    private int attempt = 0;
+    private boolean done = false;
+    private final List<PromiseFuture> running = new ArrayList<>();
+    private final List<ScheduledFuture<?>> timers = new ArrayList<>();
+
+    private RetryFetch(Request request, Function<Request, Promise<Response>> transfer) {
+        this.request = request;
+        this.transfer = transfer;
+        this.policy = request.getRetryPolicy();
+        this.hedgeDelay = request.getHedgeDelay();
+        this.retryable = this.policy != null ? this.policy.isRetryable(request) : RetryPolicy.isIdempotent(request);
+    }
+
+    /**
+     * Fetch with the retry policy and hedge delay of request.
+     *
+     * @param request  the request.
+     * @param transfer make the promise of one transfer.
+     * @return Promise object
+     */
+    static Promise<Response> fetch(Request request, Function<Request, Promise<Response>> transfer) {
+        RetryFetch fetch = new RetryFetch(request, transfer);
+        Promise<Response> promise = new Promise<>((IResolve<Response> resolve, IReject reject) -> {
+            synchronized (fetch) {
+                fetch.resolve = resolve;
+                fetch.reject = reject;
+            }
+            fetch.next();
+        }, true);
+        promise.setCancelListener(fetch::cancel);
+        return promise;
+    }
+
+    /**
+     * Start the next attempt, and the hedged request after the delay.
+     */
+    private void next() {
+        int current;
+        synchronized (this) {
+            if (this.done) {
+                return;
+            }
+            current = ++this.attempt;
+        }
+
+        // the first response of the attempt, the hedged request is in the same
+        // attempt.
+        Attempt a = new Attempt(current);
+        this.start(a);
+        if (this.hedgeDelay > 0 && this.retryable) {
+            this.schedule(() -> {
+                synchronized (this) {
+                    if (this.done || a.finished) {
+                        return;
+                    }
+                }
+                this.start(a);
+            }, this.hedgeDelay);
+        }
+    }
+
+    private void start(Attempt a) {
+        synchronized (this) {
+            if (this.done) {
+                return;
+            }
+            a.pending++;
+        }
+
+        // the fail listener is called if the chain is rejected by the executor too.
+        AtomicBoolean settled = new AtomicBoolean(false);
+        PromiseFuture future;
+        try {
+            future = this.transfer.apply(this.request).then(res -> {
+                if (settled.compareAndSet(false, true)) {
+                    this.onResponse(a, res);
+                }
+            }).fail(e -> {
+                if (settled.compareAndSet(false, true)) {
+                    this.onError(a, e);
+                }
+            }).execute();
+        } catch (Exception e) {
+            // the transfer can't be started, e.g. the executor is saturated; the retry
+            // and the hedged request start in the timer thread, don't lose it.
+            if (settled.compareAndSet(false, true)) {
+                try {
+                    this.onError(a, e);
+                } catch (Exception ex) {
+                    // the chain handles the exception itself.
+                }
+            }
+            return;
+        }
+
+        synchronized (this) {
+            if (this.done) {
+                future.cancel(true);
+            } else {
+                this.running.add(future);
+            }
+        }
+    }
+
+    private void onResponse(Attempt a, Response res) throws Exception {
+        boolean retry = false;
+        boolean loser = false;
+        synchronized (this) {
+            a.pending--;
+            if (this.done || a.finished) {
+                loser = true;
+            } else {
+                a.finished = true;
+                retry = this.retryable && this.policy != null && this.attempt < this.policy.getMaxAttempts()
+                        && this.policy.isRetryable(res);
+                if (!retry) {
+                    this.done = true;
+                }
+            }
+        }
+
+        if (loser) {
+            // the loser of hedged request, don't read the content.
+            res.abort();
+            return;
+        }
+        if (retry) {
+            long backoff = this.policy.getBackoff(a.attempt + 1, res);
+            res.abort();
+            this.retry(backoff);
+            return;
+        }
+        this.finish();
+        this.resolve.execute(res);
+    }
+
+    private void onError(Attempt a, Exception e) throws Exception {
+        boolean retry;
+        synchronized (this) {
+            a.pending--;
+            if (this.done || a.finished) {
+                return;
+            }
+            if (a.pending > 0) {
+                // wait for the other request of the attempt.
+                return;
+            }
+            // the hedged request not started is skipped.
+            a.finished = true;
+            retry = this.retryable && this.policy != null && this.attempt < this.policy.getMaxAttempts()
+                    && this.policy.isRetryable(e);
+            if (!retry) {
+                this.done = true;
+            }
+        }
+
+        if (retry) {
+            this.retry(this.policy.getBackoff(a.attempt + 1, null));
+            return;
+        }
+        this.finish();
+        this.reject.execute(e);
+    }
+
+    private void retry(long backoff) {
+        List<PromiseFuture> futures;
+        synchronized (this) {
+            futures = new ArrayList<>(this.running);
+            this.running.clear();
+        }
+        // the other request of the finished attempt.
+        for (PromiseFuture future : futures) {
+            future.cancel(true);
+        }
+        if (backoff <= 0) {
+            this.next();
+        } else {
+            this.schedule(this::next, backoff);
+        }
+    }
+
+    private void schedule(Runnable task, long delay) {
+        ScheduledFuture<?> timer = Febs.getScheduledExecutorService().schedule(task, delay, TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            if (this.done) {
+                timer.cancel(false);
+            } else {
+                this.timers.add(timer);
+            }
+        }
+    }
+
+    /**
+     * Cancel the timers and the running transfers.
+     */
+    private void finish() {
+        List<PromiseFuture> futures;
+        List<ScheduledFuture<?>> scheduled;
+        synchronized (this) {
+            futures = new ArrayList<>(this.running);
+            scheduled = new ArrayList<>(this.timers);
+            this.running.clear();
+            this.timers.clear();
+        }
+        for (ScheduledFuture<?> timer : scheduled) {
+            timer.cancel(false);
+        }
+        for (PromiseFuture future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private void cancel() {
+        synchronized (this) {
+            this.done = true;
+        }
+        this.finish();
+    }
+
+    /**
+     * One attempt, it has two requests if hedged.
+     */
+    private static final class Attempt {
+        final int attempt;
+        int pending = 0;
+        boolean finished = false;
+
+        Attempt(int attempt) {
+            this.attempt = attempt;
+        }
+    }
+}
@@ -6,6 +6,14 @@
 
 package cn.brainpoint.febs;
 
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cn.brainpoint.febs.libs.promise.IReject;
+import cn.brainpoint.febs.libs.promise.IResolve;
+
 /**
  * @author pengxiang.li
  */
@@ -25,18 +33,88 @@ public class Utils {
      *     });
      * </code>
      *
+     * The promise is resolved by timer, no worker thread is held while sleeping.
+     *
      * @param millisecond sleep time.
      * @return Promise object
      */
     public Promise<Void> sleep(long millisecond) {
-        return new Promise<>((resolve, reject) -> {
-            try {
-                Thread.sleep(millisecond);
-            } catch (Exception e) {
-                reject.execute(e);
-                return;
-            }
-            resolve.execute(null);
-        });
+        AtomicReference<ScheduledFuture<?>> timer = new AtomicReference<>();
+        Promise<Void> promise = new Promise<>((IResolve<Void> resolve, IReject reject) -> {
+            timer.set(Febs.getScheduledExecutorService().schedule(() -> dispatch(() -> {
+                try {
+                    resolve.execute(null);
+                } catch (Exception e) {
+                    // the chain handles the exception itself.
+                }
+            }), millisecond, TimeUnit.MILLISECONDS));
+        }, true);
+        // the timer is removed when the promise is cancelled.
+        promise.setCancelListener(() -> clearTimeout(timer.get()));
+        return promise;
+    }
+
+    /**
+     * Run the task after the delay, like javascript setTimeout. The task runs in
+     * Febs.getExecutorService(). <i>e.g.</i> <code>
+     *     ScheduledFuture&lt;?&gt; timer = febs.Utils.setTimeout(()-&gt;{ }, 1000);
+     *     febs.Utils.clearTimeout(timer);
+     * </code>
+     *
+     * @param task        the task.
+     * @param millisecond the delay.
+     * @return the timer, can be cancelled by clearTimeout().
+     */
+    public ScheduledFuture<?> setTimeout(Runnable task, long millisecond) {
+        return Febs.getScheduledExecutorService().schedule(() -> dispatch(task), millisecond,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancel the timer of setTimeout().
+     *
+     * @param timer the timer.
+     */
+    public void clearTimeout(ScheduledFuture<?> timer) {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    /**
+     * Run the task repeatedly at the fixed rate, like javascript setInterval. The
+     * task runs in Febs.getExecutorService(), a slow task may overlap with the
+     * next one.
+     *
+     * @param task        the task.
+     * @param millisecond the period.
+     * @return the timer, can be cancelled by clearInterval().
+     */
+    public ScheduledFuture<?> setInterval(Runnable task, long millisecond) {
+        return Febs.getScheduledExecutorService().scheduleAtFixedRate(() -> dispatch(task), millisecond,
+                millisecond, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancel the timer of setInterval().
+     *
+     * @param timer the timer.
+     */
+    public void clearInterval(ScheduledFuture<?> timer) {
+        clearTimeout(timer);
+    }
+
+    /**
+     * Run the task of timer in the executor, don't block the timer thread.
+     *
+     * @param task the task.
+     */
+    private static void dispatch(Runnable task) {
+        try {
+            Febs.getExecutorService().execute(task);
+        } catch (RejectedExecutionException e) {
+            // the executor is busy or shutdown, don't lose the timer.
+            task.run();
+        }
     }
 }
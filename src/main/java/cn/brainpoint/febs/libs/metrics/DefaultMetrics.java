@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.libs.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+import cn.brainpoint.febs.Febs;
+
+/**
+ * The metrics in memory: counters and histograms. <i>e.g.</i> <code>
+ *     DefaultMetrics metrics = new DefaultMetrics();
+ *     Febs.setMetrics(metrics);
+ *     ...
+ *     // export to the monitoring system.
+ *     for (Map.Entry&lt;String, Number&gt; e : metrics.snapshot().entrySet()) { ... }
+ * </code>
+ *
+ * The time is in nanosecond.
+ *
+ * @author pengxiang.li
+ */
+public class DefaultMetrics implements IMetrics {
+
+    private final LongAdder promisesCreated = new LongAdder();
+    private final LongAdder promisesFulfilled = new LongAdder();
+    private final LongAdder promisesRejected = new LongAdder();
+    private final Histogram chainLatency = new Histogram();
+    private final Histogram taskWait = new Histogram();
+    private final Histogram taskRun = new Histogram();
+    private final LongAdder tasksRejected = new LongAdder();
+    private final LongAdder tasksParked = new LongAdder();
+    private final LongAdder tasksCallerRuns = new LongAdder();
+    private final LongAdder tasksShed = new LongAdder();
+    private final Map<String, HostMetrics> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * The metrics of network transfer to one host.
+     */
+    public static class HostMetrics {
+        private final Histogram latency = new Histogram();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final Map<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+
+        /**
+         * The time to receive the response headers.
+         *
+         * @return histogram
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * The content bytes received, before decoded.
+         *
+         * @return bytes
+         */
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * The count of every status code.
+         *
+         * @return status code to count.
+         */
+        public Map<Integer, Long> getStatusCodes() {
+            Map<Integer, Long> map = new LinkedHashMap<>();
+            for (Map.Entry<Integer, LongAdder> e : statusCodes.entrySet()) {
+                map.put(e.getKey(), e.getValue().sum());
+            }
+            return map;
+        }
+    }
+
+    @Override
+    public void promiseCreated() {
+        this.promisesCreated.increment();
+    }
+
+    @Override
+    public void promiseFulfilled(long nanos) {
+        this.promisesFulfilled.increment();
+        this.chainLatency.record(nanos);
+    }
+
+    @Override
+    public void promiseRejected(long nanos) {
+        this.promisesRejected.increment();
+        this.chainLatency.record(nanos);
+    }
+
+    @Override
+    public void taskExecuted(long waitNanos, long runNanos) {
+        this.taskWait.record(waitNanos);
+        this.taskRun.record(runNanos);
+    }
+
+    @Override
+    public void taskRejected() {
+        this.tasksRejected.increment();
+    }
+
+    @Override
+    public void taskParked() {
+        this.tasksParked.increment();
+    }
+
+    @Override
+    public void taskCallerRuns() {
+        this.tasksCallerRuns.increment();
+    }
+
+    @Override
+    public void taskShed() {
+        this.tasksShed.increment();
+    }
+
+    @Override
+    public void fetchCompleted(String host, int statusCode, long nanos) {
+        HostMetrics h = this.host(host);
+        h.latency.record(nanos);
+        h.statusCodes.computeIfAbsent(statusCode, k -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void fetchFailed(String host, long nanos) {
+        HostMetrics h = this.host(host);
+        h.latency.record(nanos);
+        h.failures.increment();
+    }
+
+    @Override
+    public void fetchBytes(String host, long bytes) {
+        this.host(host).bytes.add(bytes);
+    }
+
+    private HostMetrics host(String host) {
+        String key = host == null ? "" : host;
+        HostMetrics h = this.hosts.get(key);
+        return h != null ? h : this.hosts.computeIfAbsent(key, k -> new HostMetrics());
+    }
+
+    public long getPromisesCreated() {
+        return promisesCreated.sum();
+    }
+
+    public long getPromisesFulfilled() {
+        return promisesFulfilled.sum();
+    }
+
+    public long getPromisesRejected() {
+        return promisesRejected.sum();
+    }
+
+    /**
+     * The time from execute() to the end of chain.
+     *
+     * @return histogram
+     */
+    public Histogram getChainLatency() {
+        return chainLatency;
+    }
+
+    /**
+     * The time of task in the queue of Febs executor.
+     *
+     * @return histogram
+     */
+    public Histogram getTaskWait() {
+        return taskWait;
+    }
+
+    /**
+     * The time of task running in Febs executor.
+     *
+     * @return histogram
+     */
+    public Histogram getTaskRun() {
+        return taskRun;
+    }
+
+    /**
+     * The tasks rejected by the handler, e.g. the queue is full in abort mode.
+     *
+     * @return count
+     */
+    public long getTasksRejected() {
+        return tasksRejected.sum();
+    }
+
+    public long getTasksParked() {
+        return tasksParked.sum();
+    }
+
+    public long getTasksCallerRuns() {
+        return tasksCallerRuns.sum();
+    }
+
+    public long getTasksShed() {
+        return tasksShed.sum();
+    }
+
+    /**
+     * The metrics of network transfer by host.
+     *
+     * @return host to metrics, the host has the port if it isn't the default.
+     */
+    public Map<String, HostMetrics> getHosts() {
+        return Collections.unmodifiableMap(hosts);
+    }
+
+    /**
+     * All metrics in flat names, with the gauges of Febs executor: active
+     * threads, pool size, queue depth and the tasks waiting for the queue.
+     *
+     * @return name to value, e.g. "fetch.example.com.latency.p99".
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> map = new LinkedHashMap<>();
+        map.put("promise.created", this.getPromisesCreated());
+        map.put("promise.fulfilled", this.getPromisesFulfilled());
+        map.put("promise.rejected", this.getPromisesRejected());
+        putHistogram(map, "promise.latency", this.chainLatency);
+        putHistogram(map, "executor.wait", this.taskWait);
+        putHistogram(map, "executor.run", this.taskRun);
+        map.put("executor.rejected", this.getTasksRejected());
+        map.put("executor.parked", this.getTasksParked());
+        map.put("executor.callerRuns", this.getTasksCallerRuns());
+        map.put("executor.shed", this.getTasksShed());
+        map.put("executor.waiting", Febs.getWaitingTaskCount());
+
+        ExecutorService executor;
+        try {
+            executor = Febs.getExecutorService();
+        } catch (Exception e) {
+            executor = null;
+        }
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            map.put("executor.active", pool.getActiveCount());
+            map.put("executor.pool", pool.getPoolSize());
+            map.put("executor.queue", pool.getQueue().size());
+        } else if (executor instanceof ForkJoinPool) {
+            ForkJoinPool pool = (ForkJoinPool) executor;
+            map.put("executor.active", pool.getActiveThreadCount());
+            map.put("executor.pool", pool.getPoolSize());
+            map.put("executor.queue", pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount());
+            map.put("executor.steal", pool.getStealCount());
+        }
+
+        for (Map.Entry<String, HostMetrics> e : this.hosts.entrySet()) {
+            String prefix = "fetch." + e.getKey();
+            HostMetrics h = e.getValue();
+            putHistogram(map, prefix + ".latency", h.latency);
+            map.put(prefix + ".failures", h.getFailures());
+            map.put(prefix + ".bytes", h.getBytes());
+            for (Map.Entry<Integer, Long> status : h.getStatusCodes().entrySet()) {
+                map.put(prefix + ".status." + status.getKey(), status.getValue());
+            }
+        }
+        return map;
+    }
+
+    private static void putHistogram(Map<String, Number> map, String name, Histogram histogram) {
+        map.put(name + ".count", histogram.getCount());
+        map.put(name + ".mean", histogram.getMean());
+        map.put(name + ".p50", histogram.getPercentile(50));
+        map.put(name + ".p99", histogram.getPercentile(99));
+        map.put(name + ".p999", histogram.getPercentile(99.9));
+        map.put(name + ".max", histogram.getMax());
+    }
+}
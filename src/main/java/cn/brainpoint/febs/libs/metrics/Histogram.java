@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.libs.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The lock-free histogram of non-negative long value like HdrHistogram. The
+ * buckets are linear in every power of 2, the relative error is less than
+ * 1/64; the memory is fixed, recording doesn't allocate.
+ *
+ * @author pengxiang.li
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int BUCKETS = (63 - SUB_BITS) * HALF_COUNT + SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Record a value, the negative value is recorded as 0.
+     *
+     * @param value the value.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(indexOf(value));
+        this.count.increment();
+        this.sum.add(value);
+        long m = this.max.get();
+        while (value > m && !this.max.compareAndSet(m, value)) {
+            m = this.max.get();
+        }
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getSum() {
+        return this.sum.sum();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    public double getMean() {
+        long n = this.count.sum();
+        return n == 0 ? 0 : (double) this.sum.sum() / n;
+    }
+
+    /**
+     * The value at the percentile, it is the upper bound of the bucket.
+     *
+     * @param percentile 0 - 100, e.g. 99.9.
+     * @return the value, 0 if empty.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += this.counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestOf(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Clear all values, the concurrent recording may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts.set(i, 0);
+        }
+        this.count.reset();
+        this.sum.reset();
+        this.max.set(0);
+    }
+
+    /**
+     * The value less than SUB_COUNT is exact; the others are in HALF_COUNT
+     * buckets of every power of 2.
+     */
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS + 1;
+        return shift * HALF_COUNT + (int) (value >>> shift);
+    }
+
+    static long highestOf(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / HALF_COUNT - 1;
+        long sub = index - (long) shift * HALF_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
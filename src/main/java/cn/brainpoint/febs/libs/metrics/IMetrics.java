@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.libs.metrics;
+
+/**
+ * The metrics listener of promise, executor and network transfer. Implement it
+ * to export the metrics to the monitoring system, or use DefaultMetrics. The
+ * methods are called in the hot path, they should be short and thread safe.
+ *
+ * The default is NOOP, the time is not measured at all.
+ *
+ * @author pengxiang.li
+ */
+public interface IMetrics {
+
+    /**
+     * Record nothing.
+     */
+    IMetrics NOOP = new IMetrics() {
+    };
+
+    /**
+     * A promise chain is constructed; the nodes of then / fail are not counted,
+     * so it matches promiseFulfilled / promiseRejected of the chain.
+     */
+    default void promiseCreated() {
+    }
+
+    /**
+     * A promise chain is fulfilled.
+     *
+     * @param nanos the time from execute() to the end of chain.
+     */
+    default void promiseFulfilled(long nanos) {
+    }
+
+    /**
+     * A promise chain is rejected.
+     *
+     * @param nanos the time from execute() to the end of chain.
+     */
+    default void promiseRejected(long nanos) {
+    }
+
+    /**
+     * A task of Febs executor finished.
+     *
+     * @param waitNanos the time in the queue.
+     * @param runNanos  the time to run.
+     */
+    default void taskExecuted(long waitNanos, long runNanos) {
+    }
+
+    /**
+     * A task is rejected by the handler of Febs executor, e.g. the queue is full
+     * in abort mode. The parked, caller runs and shed tasks are not counted.
+     */
+    default void taskRejected() {
+    }
+
+    /**
+     * A task waits for the capacity of queue, in backpressure mode.
+     */
+    default void taskParked() {
+    }
+
+    /**
+     * A rejected task runs in the caller thread.
+     */
+    default void taskCallerRuns() {
+    }
+
+    /**
+     * The oldest task in queue is shed for the new one, its promise is
+     * rejected.
+     */
+    default void taskShed() {
+    }
+
+    /**
+     * The response headers of network transfer is received.
+     *
+     * @param host       the host, with the port if it is not the default port.
+     * @param statusCode the status code.
+     * @param nanos      the time from the start of transfer.
+     */
+    default void fetchCompleted(String host, int statusCode, long nanos) {
+    }
+
+    /**
+     * The network transfer failed without response, e.g. io error or cancelled.
+     *
+     * @param host  the host, with the port if it is not the default port.
+     * @param nanos the time from the start of transfer.
+     */
+    default void fetchFailed(String host, long nanos) {
+    }
+
+    /**
+     * The response content is read to the end, or closed.
+     *
+     * @param host  the host, with the port if it is not the default port.
+     * @param bytes the content bytes received, before decoded.
+     */
+    default void fetchBytes(String host, long bytes) {
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.libs.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The form body in application/x-www-form-urlencoded, encoded in UTF-8.
+ * <i>e.g.</i> <code>
+ *     request.setRequestBody(new FormBody().add("name", "value"));
+ * </code>
+ *
+ * @author pengxiang.li
+ */
+public class FormBody extends RequestBody {
+
+    private final StringBuilder content = new StringBuilder();
+    private byte[] bytes;
+
+    public FormBody() {
+        super("application/x-www-form-urlencoded; charset=UTF-8");
+    }
+
+    /**
+     * Add a field.
+     *
+     * @param name  the field name.
+     * @param value the field value.
+     * @return this form.
+     */
+    public FormBody add(String name, String value) {
+        if (this.content.length() > 0) {
+            this.content.append('&');
+        }
+        this.content.append(encode(name)).append('=').append(encode(value == null ? "" : value));
+        this.bytes = null;
+        return this;
+    }
+
+    @Override
+    public long getContentLength() {
+        return this.getBytes().length;
+    }
+
+    @Override
+    public InputStream open() {
+        return new ByteArrayInputStream(this.getBytes());
+    }
+
+    @Override
+    public byte[] getBytes() {
+        if (this.bytes == null) {
+            this.bytes = this.content.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return this.bytes;
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -7,189 +7,307 @@
 package cn.brainpoint.febs.libs.net;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+/**
+ * The case-insensitive headers. The names and values are stored in a flat
+ * array in order, the name is capitalized when it is set, and the common name
+ * is shared; so getHeader() doesn't allocate.
+ */
 public class Headers {
 
-    protected Map<String, List<String>> headerSet;
+    /**
+     * The common header names, capitalized like upperCaseFirst().
+     */
+    private static final String[] COMMON_NAMES = { "Accept", "Accept-Encoding", "Accept-Language",
+            "Accept-Ranges", "Age", "Authorization", "Cache-Control", "Connection", "Content-Disposition",
+            "Content-Encoding", "Content-Language", "Content-Length", "Content-Range", "Content-Type", "Cookie",
+            "Date", "Etag", "Expires", "Host", "If-Modified-Since", "If-None-Match", "Keep-Alive", "Last-Modified",
+            "Location", "Pragma", "Range", "Referer", "Retry-After", "Server", "Set-Cookie", "Transfer-Encoding",
+            "User-Agent", "Vary", "Via", "Www-Authenticate", "X-Forwarded-For", "X-Requested-With" };
+
+    /**
+     * name0, value0, name1, value1, ...
+     */
+    private String[] entries;
+    private int size;
 
     public Headers() {
     }
 
     public Headers(Map<String, List<String>> headerSet) {
-        this.headerSet = headerSet;
+        if (headerSet != null) {
+            for (Map.Entry<String, List<String>> e : headerSet.entrySet()) {
+                if (e.getKey() != null && e.getValue() != null) {
+                    for (String value : e.getValue()) {
+                        this.append(canonical(e.getKey()), value);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Called before the headers are accessed, the subclass can load the
+     * headers lazily, e.g. from the connection.
+     */
+    protected void loadHeaders() {
     }
 
     /**
      * Get the key size in the headers
-     * 
+     *
      * @return key size of headers
      */
     public int getHeaderLength() {
-        return this.headerSet == null ? 0 : this.headerSet.size();
+        this.loadHeaders();
+        int count = 0;
+        for (int i = 0; i < this.size; i++) {
+            if (this.indexOf(this.entries[i * 2], 0) == i) {
+                count++;
+            }
+        }
+        return count;
     }
 
     /**
      * Get header key set.
-     * 
+     *
      * @return key set
      */
     public Set<String> getHeaderKeySet() {
-        if (this.headerSet == null) {
-            return new HashSet<>();
-        } else {
-            return this.headerSet.keySet();
+        this.loadHeaders();
+        Set<String> keys = new LinkedHashSet<>();
+        for (int i = 0; i < this.size; i++) {
+            keys.add(this.entries[i * 2]);
         }
+        return keys;
     }
 
     /**
      * Get header by key.
-     * 
+     *
      * @param key header key
-     * @return header value collection
+     * @return header value collection, it is unmodifiable.
      */
     public Collection<String> getHeaders(String key) {
-        if (this.headerSet == null) {
-            return new ArrayList<>();
+        this.loadHeaders();
+        int i = this.indexOf(key, 0);
+        if (i < 0) {
+            return Collections.emptyList();
         }
-        key = upperCaseFirst(key);
-        if (!this.headerSet.containsKey(key)) {
-            return new ArrayList<>();
+        int next = this.indexOf(key, i + 1);
+        if (next < 0) {
+            return Collections.singletonList(this.entries[i * 2 + 1]);
         }
 
-        return this.headerSet.get(key);
+        List<String> values = new ArrayList<>(4);
+        for (; i >= 0; i = this.indexOf(key, i + 1)) {
+            values.add(this.entries[i * 2 + 1]);
+        }
+        return Collections.unmodifiableList(values);
     }
 
     /**
      * Get first header by key.
-     * 
+     *
      * @param key header key
      * @return header value
      */
     public String getHeader(String key) {
-        if (this.headerSet == null) {
-            return null;
-        }
-        key = upperCaseFirst(key);
-        if (!this.headerSet.containsKey(key)) {
-            return null;
-        }
-
-        Collection<String> values = this.headerSet.get(key);
-        if (values == null || values.isEmpty()) {
-            return null;
-        }
-        return values.iterator().next();
+        this.loadHeaders();
+        int i = this.indexOf(key, 0);
+        return i < 0 ? null : this.entries[i * 2 + 1];
     }
 
     /**
      * Set header by key and value.
-     * 
+     *
      * @param key   will capitalize the conversion first letter; e.g.
      *              "x-custom-header" -&gt; "X-Custom-Header"
      * @param value value of header
      */
     public void setHeader(String key, String value) {
-        if (this.headerSet == null) {
-            this.headerSet = new HashMap<>();
-        }
-
-        key = upperCaseFirst(key);
-
-        Collection<String> headers1 = this.headerSet.get(key);
-        if (null == headers1) {
-            ArrayList<String> values = new ArrayList<>();
-            values.add(value);
-            this.headerSet.put(key, values);
-        } else {
-            List<String> headers2 = (List<String>) headers1;
-            if (headers2.size() == 1) {
-                headers2.set(0, value);
-            } else {
-                headers2.clear();
-                headers2.add(value);
-            }
+        this.loadHeaders();
+        int i = this.indexOf(key, 0);
+        if (i < 0) {
+            this.append(canonical(key), value);
+            return;
         }
+        this.entries[i * 2 + 1] = value;
+        this.remove(key, i + 1);
     }
 
     /**
      * add header by key and value.
-     * 
+     *
      * @param key   will capitalize the conversion first letter; e.g.
      *              "x-custom-header" -&gt; "X-Custom-Header"
      * @param value value of header
      */
     public void addHeader(String key, String value) {
-        if (this.headerSet == null) {
-            this.headerSet = new HashMap<>();
-        }
-
-        key = upperCaseFirst(key);
-        Collection<String> headers1 = this.headerSet.get(key);
-        if (null == headers1) {
-            ArrayList<String> values = new ArrayList<>();
-            values.add(value);
-            this.headerSet.put(key, values);
-        } else {
-            List<String> headers2 = (List<String>) headers1;
-            headers2.add(value);
-        }
+        this.loadHeaders();
+        int i = this.indexOf(key, 0);
+        // share the name with the existing one.
+        this.append(i < 0 ? canonical(key) : this.entries[i * 2], value);
     }
 
     /**
      * Set header by key and values
-     * 
+     *
      * @param key   will capitalize the conversion first letter; e.g.
      *              "x-custom-header" -&gt; "X-Custom-Header"
      * @param value value of header
      */
     public void setHeader(String key, Collection<String> value) {
-        if (this.headerSet == null) {
-            this.headerSet = new HashMap<>();
-        }
-        key = upperCaseFirst(key);
-        Collection<String> headers1 = this.headerSet.get(key);
-        if (null == headers1) {
-            this.headerSet.put(key, new ArrayList<>(value));
-        } else {
-            this.headerSet.replace(key, new ArrayList<>(value));
+        this.loadHeaders();
+        this.remove(key, 0);
+        String name = canonical(key);
+        for (String v : value) {
+            this.append(name, v);
         }
     }
 
     /**
      * Remove header by key
-     * 
+     *
      * @param key header key
      */
     public void removeHeader(String key) {
-        if (this.headerSet != null) {
-            key = upperCaseFirst(key);
-            this.headerSet.remove(key);
+        this.loadHeaders();
+        this.remove(key, 0);
+    }
+
+    /**
+     * The headers as a map; it replaces the protected field headerSet, which is
+     * removed since the headers are stored in a flat array.
+     *
+     * @return the snapshot of headers, the changes are not written back.
+     * @deprecated use getHeaderKeySet(), getHeaders(), setHeader().
+     */
+    @Deprecated
+    protected Map<String, List<String>> getHeaderSet() {
+        this.loadHeaders();
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        for (int i = 0; i < this.size; i++) {
+            map.computeIfAbsent(this.entries[i * 2], k -> new ArrayList<>()).add(this.entries[i * 2 + 1]);
+        }
+        return map;
+    }
+
+    /**
+     * The count of name-value pairs, for iteration without allocation.
+     */
+    int headerCount() {
+        this.loadHeaders();
+        return this.size;
+    }
+
+    String headerName(int index) {
+        return this.entries[index * 2];
+    }
+
+    String headerValue(int index) {
+        return this.entries[index * 2 + 1];
+    }
+
+    /**
+     * Replace the headers by a copy of other.
+     */
+    void copyHeaders(Headers other) {
+        other.loadHeaders();
+        this.entries = other.entries == null ? null : other.entries.clone();
+        this.size = other.size;
+    }
+
+    /**
+     * Append the name-value pair, the name is canonical.
+     */
+    protected final void append(String name, String value) {
+        if (this.entries == null) {
+            this.entries = new String[16];
+        } else if (this.size * 2 == this.entries.length) {
+            this.entries = Arrays.copyOf(this.entries, this.entries.length * 2);
         }
+        this.entries[this.size * 2] = name;
+        this.entries[this.size * 2 + 1] = value;
+        this.size++;
     }
 
-    private String upperCaseFirst(String headerKey) {
-        String[] arr = headerKey.split("-");
-        StringBuilder sb = new StringBuilder();
-        for (String s : arr) {
-            if (sb.length() > 0) {
-                sb.append("-");
+    private int indexOf(String key, int from) {
+        for (int i = from; i < this.size; i++) {
+            String name = this.entries[i * 2];
+            if (name == key || name.equalsIgnoreCase(key)) {
+                return i;
             }
+        }
+        return -1;
+    }
+
+    private void remove(String key, int from) {
+        if (this.entries == null) {
+            return;
+        }
+        int j = from;
+        for (int i = from; i < this.size; i++) {
+            String name = this.entries[i * 2];
+            if (name == key || name.equalsIgnoreCase(key)) {
+                continue;
+            }
+            this.entries[j * 2] = name;
+            this.entries[j * 2 + 1] = this.entries[i * 2 + 1];
+            j++;
+        }
+        Arrays.fill(this.entries, j * 2, this.size * 2, null);
+        this.size = j;
+    }
 
-            char c = s.charAt(0);
-            if (Character.isLowerCase(c) || Character.isUpperCase(c)) {
-                sb.append(Character.toUpperCase(c));
-                sb.append(s.substring(1).toLowerCase());
-            } else {
-                sb.append(s.toLowerCase());
+    /**
+     * The capitalized name, e.g. "content-type" -&gt; "Content-Type"; the
+     * common name is shared, and the capitalized name is returned as is.
+     */
+    protected static String canonical(String headerKey) {
+        for (String name : COMMON_NAMES) {
+            if (name.length() == headerKey.length() && name.equalsIgnoreCase(headerKey)) {
+                return name;
             }
         }
 
-        return sb.toString();
+        boolean first = true;
+        int len = headerKey.length();
+        for (int i = 0; i < len; i++) {
+            char c = headerKey.charAt(i);
+            if (c == '-') {
+                first = true;
+                continue;
+            }
+            if (first ? Character.isLowerCase(c) : Character.isUpperCase(c)) {
+                return upperCaseFirst(headerKey);
+            }
+            first = false;
+        }
+        return headerKey;
+    }
+
+    private static String upperCaseFirst(String headerKey) {
+        char[] chars = headerKey.toCharArray();
+        boolean first = true;
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            if (c == '-') {
+                first = true;
+                continue;
+            }
+            chars[i] = first ? Character.toUpperCase(c) : Character.toLowerCase(c);
+            first = false;
+        }
+        return new String(chars);
     }
 }
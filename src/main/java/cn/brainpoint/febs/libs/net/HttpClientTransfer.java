@@ -0,0 +1,333 @@
+/**
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: lipengxiang
+ * Desc:
+ */
+
+package cn.brainpoint.febs.libs.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * The non-blocking network transfer on java.net.http.HttpClient (JDK 11+).
+ * The response is completed by the io callback, no thread is held while
+ * waiting for the server. The library is built for JDK 1.8, so the
+ * HttpClient is called by reflection.
+ *
+ * Unlike Transfer, the hostname of certificate is always verified by
+ * HttpClient, the trust manager only decides the trusted certificates.
+ */
+public final class HttpClientTransfer {
+
+    private static final Api api = Api.load();
+
+    /**
+     * The clients of HTTP/1.1 and HTTP/2.
+     */
+    private static final Object[] clients = new Object[2];
+    private static final SSLContext[] clientSSLContexts = new SSLContext[2];
+    private static Executor clientExecutor = null;
+
+    /**
+     * Whether the HttpClient is supported by this JVM (JDK 11+).
+     *
+     * @return true if supported.
+     */
+    public static boolean isSupported() {
+        return api != null;
+    }
+
+    /**
+     * Set the executor to run the io callback.
+     *
+     * @param executor the executor, null to use the default executor of
+     *                 HttpClient.
+     */
+    public static synchronized void setExecutor(Executor executor) {
+        clientExecutor = executor;
+        clients[0] = null;
+        clients[1] = null;
+    }
+
+    /**
+     * Network request, the callback is called in the io thread after the
+     * response headers received.
+     *
+     * @param param    the request parameter.
+     * @param callback called with the response, or the exception.
+     * @return the future of transfer, cancel it to abort the transfer.
+     * @throws Exception cause in the invalid parameter or ssl exception.
+     */
+    public static CompletableFuture<?> request(Request param, BiConsumer<Response, Exception> callback)
+            throws Exception {
+        return request(param, false, callback);
+    }
+
+    /**
+     * Network request, the callback is called in the io thread after the
+     * response headers received.
+     *
+     * @param param    the request parameter.
+     * @param http2    use HTTP/2: h2 over TLS by ALPN, or h2c by upgrade over
+     *                 cleartext; it falls back to HTTP/1.1 if the server doesn't
+     *                 support it. The streams to the same host are multiplexed
+     *                 over one connection.
+     * @param callback called with the response, or the exception.
+     * @return the future of transfer, cancel it to abort the transfer.
+     * @throws Exception cause in the invalid parameter or ssl exception.
+     */
+    @SuppressWarnings("unchecked")
+    public static CompletableFuture<?> request(Request param, boolean http2, BiConsumer<Response, Exception> callback)
+            throws Exception {
+        if (api == null) {
+            throw new UnsupportedOperationException("java.net.http.HttpClient is not supported");
+        }
+
+        int timeout = param.getTimeout() == 0 ? 5000 : param.getTimeout();
+        String method = null == param.getMethod() || param.getMethod().isEmpty() ? "GET" : param.getMethod();
+        method = method.toUpperCase();
+
+        Object builder = api.invoke(api.requestNewBuilder, null, URI.create(param.getUrl()));
+        RequestBody body = param.getRequestBody();
+        boolean hasBody = null != body;
+        api.invoke(api.requestMethod, builder, method, toPublisher(body));
+        api.invoke(api.requestTimeout, builder, Duration.ofMillis(timeout));
+
+        // 设置通用的请求属性
+        boolean hasAccept = false;
+        boolean hasContentType = false;
+        boolean hasAcceptEncoding = false;
+        for (int i = 0, n = param.headerCount(); i < n; i++) {
+            String key = param.headerName(i);
+            hasAccept = hasAccept || "Accept".equalsIgnoreCase(key);
+            hasContentType = hasContentType || "Content-Type".equalsIgnoreCase(key);
+            hasAcceptEncoding = hasAcceptEncoding || "Accept-Encoding".equalsIgnoreCase(key);
+            try {
+                api.invoke(api.requestHeader, builder, key, param.headerValue(i));
+            } catch (IllegalArgumentException e) {
+                // the restricted header set by HttpClient, e.g. Connection, Host.
+            }
+        }
+        if (!hasAccept) {
+            api.invoke(api.requestHeader, builder, "Accept", "*/*");
+        }
+        if (param.isDecompress() && !hasAcceptEncoding) {
+            api.invoke(api.requestHeader, builder, "Accept-Encoding", Transfer.ACCEPT_ENCODING);
+        }
+        if (hasBody && !hasContentType) {
+            // the content type of body, or the default of HttpURLConnection.
+            api.invoke(api.requestHeader, builder, "Content-Type",
+                    body.getContentType() != null ? body.getContentType() : "application/x-www-form-urlencoded");
+        }
+        Object request = api.invoke(api.requestBuild, builder);
+
+        CompletableFuture<Object> future = (CompletableFuture<Object>) api.invoke(api.sendAsync, getClient(http2),
+                request, api.bodyHandler);
+        // the callback is a dependent stage; return the future of sendAsync, cancelling it
+        // aborts the exchange.
+        future.whenComplete((resp, ex) -> {
+            if (ex != null) {
+                callback.accept(null, toException(ex));
+                return;
+            }
+
+            Response result;
+            try {
+                result = toResponse(resp);
+                result.setDecompress(param.isDecompress());
+            } catch (Exception e) {
+                callback.accept(null, e);
+                return;
+            }
+            callback.accept(result, null);
+        });
+        return future;
+    }
+
+    /**
+     * The body publisher, the streaming body is sent in fixed-length mode if
+     * the content length is known, or in chunked mode.
+     */
+    private static Object toPublisher(RequestBody body) throws Exception {
+        if (body == null) {
+            return api.invoke(api.publisherNoBody, null);
+        }
+        byte[] bytes = body.getBytes();
+        if (bytes != null) {
+            return api.invoke(api.publisherOfByteArray, null, (Object) bytes);
+        }
+
+        Supplier<InputStream> supplier = () -> {
+            try {
+                return body.open();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        Object publisher = api.invoke(api.publisherOfInputStream, null, supplier);
+        long length = body.getContentLength();
+        if (length >= 0) {
+            publisher = api.invoke(api.publisherFromPublisher, null, publisher, length);
+        }
+        return publisher;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Response toResponse(Object resp) throws Exception {
+        int statusCode = (Integer) api.invoke(api.responseStatusCode, resp);
+        InputStream body = (InputStream) api.invoke(api.responseBody, resp);
+        Object headers = api.invoke(api.responseHeaders, resp);
+        Map<String, List<String>> map = (Map<String, List<String>>) api.invoke(api.headersMap, headers);
+
+        Response result = new Response(statusCode, body);
+        Object version = api.invoke(api.responseVersion, resp);
+        result.setProtocol(version == api.versionHttp2 ? "HTTP/2" : "HTTP/1.1");
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            // the pseudo header of http/2, e.g. ":status".
+            if (entry.getKey() != null && !entry.getKey().startsWith(":")) {
+                String name = Headers.canonical(entry.getKey());
+                for (String value : entry.getValue()) {
+                    result.append(name, value);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Exception toException(Throwable ex) {
+        if (ex instanceof CompletionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        return ex instanceof Exception ? (Exception) ex : new RuntimeException(ex);
+    }
+
+    /**
+     * The client is shared by all requests for the connection pool, it is
+     * rebuilt after the trust manager changed.
+     */
+    private static synchronized Object getClient(boolean http2) throws Exception {
+        SSLContext sslContext = Transfer.getSSLContext();
+        int index = http2 ? 1 : 0;
+        if (clients[index] == null || clientSSLContexts[index] != sslContext) {
+            Object builder = api.invoke(api.clientNewBuilder, null);
+            if (sslContext != null) {
+                api.invoke(api.clientSslContext, builder, sslContext);
+            }
+            api.invoke(api.clientFollowRedirects, builder, api.redirectNormal);
+            api.invoke(api.clientVersion, builder, http2 ? api.versionHttp2 : api.versionHttp11);
+            if (clientExecutor != null) {
+                api.invoke(api.clientExecutor, builder, clientExecutor);
+            }
+            clients[index] = api.invoke(api.clientBuild, builder);
+            clientSSLContexts[index] = sslContext;
+        }
+        return clients[index];
+    }
+
+    /**
+     * The reflected api of java.net.http.
+     */
+    private static final class Api {
+        Method clientNewBuilder;
+        Method clientSslContext;
+        Method clientFollowRedirects;
+        Method clientVersion;
+        Method clientExecutor;
+        Method clientBuild;
+        Method sendAsync;
+        Method requestNewBuilder;
+        Method requestMethod;
+        Method requestHeader;
+        Method requestTimeout;
+        Method requestBuild;
+        Method publisherOfByteArray;
+        Method publisherOfInputStream;
+        Method publisherFromPublisher;
+        Method publisherNoBody;
+        Method responseStatusCode;
+        Method responseHeaders;
+        Method responseBody;
+        Method headersMap;
+        Object bodyHandler;
+        Object redirectNormal;
+        Object versionHttp11;
+        Object versionHttp2;
+        Method responseVersion;
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        static Api load() {
+            try {
+                Class<?> client = Class.forName("java.net.http.HttpClient");
+                Class<?> clientBuilder = Class.forName("java.net.http.HttpClient$Builder");
+                Class redirect = Class.forName("java.net.http.HttpClient$Redirect");
+                Class version = Class.forName("java.net.http.HttpClient$Version");
+                Class<?> request = Class.forName("java.net.http.HttpRequest");
+                Class<?> requestBuilder = Class.forName("java.net.http.HttpRequest$Builder");
+                Class<?> publisher = Class.forName("java.net.http.HttpRequest$BodyPublisher");
+                Class<?> publishers = Class.forName("java.net.http.HttpRequest$BodyPublishers");
+                Class<?> response = Class.forName("java.net.http.HttpResponse");
+                Class<?> handler = Class.forName("java.net.http.HttpResponse$BodyHandler");
+                Class<?> handlers = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+                Class<?> headers = Class.forName("java.net.http.HttpHeaders");
+
+                Api api = new Api();
+                api.clientNewBuilder = client.getMethod("newBuilder");
+                api.clientSslContext = clientBuilder.getMethod("sslContext", SSLContext.class);
+                api.clientFollowRedirects = clientBuilder.getMethod("followRedirects", redirect);
+                api.clientVersion = clientBuilder.getMethod("version", version);
+                api.clientExecutor = clientBuilder.getMethod("executor", Executor.class);
+                api.clientBuild = clientBuilder.getMethod("build");
+                api.sendAsync = client.getMethod("sendAsync", request, handler);
+                api.requestNewBuilder = request.getMethod("newBuilder", URI.class);
+                api.requestMethod = requestBuilder.getMethod("method", String.class, publisher);
+                api.requestHeader = requestBuilder.getMethod("header", String.class, String.class);
+                api.requestTimeout = requestBuilder.getMethod("timeout", Duration.class);
+                api.requestBuild = requestBuilder.getMethod("build");
+                api.publisherOfByteArray = publishers.getMethod("ofByteArray", byte[].class);
+                api.publisherOfInputStream = publishers.getMethod("ofInputStream", Supplier.class);
+                api.publisherFromPublisher = publishers.getMethod("fromPublisher",
+                        Class.forName("java.util.concurrent.Flow$Publisher"), long.class);
+                api.publisherNoBody = publishers.getMethod("noBody");
+                api.responseStatusCode = response.getMethod("statusCode");
+                api.responseHeaders = response.getMethod("headers");
+                api.responseBody = response.getMethod("body");
+                api.headersMap = headers.getMethod("map");
+                api.bodyHandler = handlers.getMethod("ofInputStream").invoke(null);
+                api.redirectNormal = Enum.valueOf(redirect, "NORMAL");
+                api.versionHttp11 = Enum.valueOf(version, "HTTP_1_1");
+                api.versionHttp2 = Enum.valueOf(version, "HTTP_2");
+                api.responseVersion = response.getMethod("version");
+                return api;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        Object invoke(Method method, Object target, Object... args) throws Exception {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw e;
+            }
+        }
+    }
+}
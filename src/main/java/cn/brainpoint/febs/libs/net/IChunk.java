@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.libs.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The listener of response content chunk.
+ *
+ * @author pengxiang.li
+ */
+public interface IChunk {
+    void execute(ByteBuffer chunk) throws Exception;
+}
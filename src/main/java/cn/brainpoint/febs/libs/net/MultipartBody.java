@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.libs.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The form body in multipart/form-data, the parts are streamed.
+ * <i>e.g.</i> <code>
+ *     request.setRequestBody(new MultipartBody()
+ *                  .add("name", "value")
+ *                  .add("file", "a.txt", RequestBody.of(path, "text/plain")));
+ * </code>
+ *
+ * @author pengxiang.li
+ */
+public class MultipartBody extends RequestBody {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final String boundary;
+    private final List<byte[]> heads = new ArrayList<>();
+    private final List<RequestBody> parts = new ArrayList<>();
+
+    public MultipartBody() {
+        this("febs-" + UUID.randomUUID().toString().replace("-", ""));
+    }
+
+    public MultipartBody(String boundary) {
+        super("multipart/form-data; boundary=" + boundary);
+        this.boundary = boundary;
+    }
+
+    public String getBoundary() {
+        return boundary;
+    }
+
+    /**
+     * Add a field.
+     *
+     * @param name  the field name.
+     * @param value the field value, encoded in UTF-8.
+     * @return this form.
+     */
+    public MultipartBody add(String name, String value) {
+        return this.add(name, null, RequestBody.of(value == null ? "" : value, StandardCharsets.UTF_8, null));
+    }
+
+    /**
+     * Add a file.
+     *
+     * @param name        the field name.
+     * @param file        the file path.
+     * @param contentType the content type of file, or null for
+     *                    application/octet-stream.
+     * @return this form.
+     * @throws IOException cause in the file not found.
+     */
+    public MultipartBody add(String name, Path file, String contentType) throws IOException {
+        return this.add(name, file.getFileName().toString(), RequestBody.of(file, contentType));
+    }
+
+    /**
+     * Add a part.
+     *
+     * @param name     the field name.
+     * @param filename the file name, or null if it isn't a file.
+     * @param body     the content of part.
+     * @return this form.
+     */
+    public MultipartBody add(String name, String filename, RequestBody body) {
+        StringBuilder head = new StringBuilder();
+        head.append("--").append(this.boundary).append("\r\n");
+        head.append("Content-Disposition: form-data; name=\"").append(escape(name)).append('"');
+        if (filename != null) {
+            head.append("; filename=\"").append(escape(filename)).append('"');
+        }
+        head.append("\r\n");
+        String type = body.getContentType();
+        if (type == null && filename != null) {
+            type = "application/octet-stream";
+        }
+        if (type != null) {
+            head.append("Content-Type: ").append(type).append("\r\n");
+        }
+        head.append("\r\n");
+
+        this.heads.add(head.toString().getBytes(StandardCharsets.UTF_8));
+        this.parts.add(body);
+        return this;
+    }
+
+    @Override
+    public long getContentLength() {
+        long length = this.tail().length;
+        for (int i = 0; i < this.parts.size(); i++) {
+            long partLength = this.parts.get(i).getContentLength();
+            if (partLength < 0) {
+                return -1;
+            }
+            length += this.heads.get(i).length + partLength + 2;
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        for (RequestBody part : this.parts) {
+            if (!part.isRepeatable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+        List<InputStream> streams = new ArrayList<>();
+        for (int i = 0; i < this.parts.size(); i++) {
+            streams.add(new ByteArrayInputStream(this.heads.get(i)));
+            streams.add(this.parts.get(i).open());
+            streams.add(new ByteArrayInputStream(CRLF));
+        }
+        streams.add(new ByteArrayInputStream(this.tail()));
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /**
+     * The closing delimiter.
+     */
+    private byte[] tail() {
+        return ("--" + this.boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+}
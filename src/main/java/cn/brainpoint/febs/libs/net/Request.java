@@ -6,6 +6,8 @@
 
 package cn.brainpoint.febs.libs.net;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * The request parameter of network transfer.
  *
@@ -14,8 +16,12 @@ package cn.brainpoint.febs.libs.net;
 public class Request extends Headers {
     private String url;
     private String body;
+    private RequestBody requestBody;
     private String method;
     private int timeout = 5000;
+    private RetryPolicy retryPolicy;
+    private long hedgeDelay = 0;
+    private boolean decompress = true;
 
     public String getUrl() {
         return url;
@@ -31,6 +37,33 @@ public class Request extends Headers {
 
     public void setBody(String v) {
         body = v;
+        requestBody = null;
+    }
+
+    /**
+     * Set the binary or streaming body, e.g. RequestBody.of(path, type),
+     * FormBody, MultipartBody.
+     *
+     * @param v the body.
+     */
+    public void setRequestBody(RequestBody v) {
+        body = null;
+        requestBody = v;
+    }
+
+    /**
+     * Get the body to send, the string body is encoded in UTF-8.
+     *
+     * @return the body, or null if no body.
+     */
+    public RequestBody getRequestBody() {
+        if (requestBody != null) {
+            return requestBody;
+        }
+        if (body != null && body.length() > 0) {
+            return RequestBody.of(body, StandardCharsets.UTF_8, null);
+        }
+        return null;
     }
 
     public String getMethod() {
@@ -59,10 +92,83 @@ public class Request extends Headers {
         timeout = v;
     }
 
+    /**
+     * The retry policy, null is no retry.
+     *
+     * @return retry policy
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * set the retry policy, null is no retry.
+     *
+     * @param v retry policy
+     */
+    public void setRetryPolicy(RetryPolicy v) {
+        retryPolicy = v;
+    }
+
+    /**
+     * The delay to send the hedged request, 0 is no hedged request.
+     *
+     * @return delay in millisecond
+     */
+    public long getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    /**
+     * Send the second request if no response after the delay, the first
+     * response is used and the other is cancelled. The delay is usually the p95
+     * latency.
+     *
+     * @param v delay in millisecond, 0 is no hedged request.
+     */
+    public void setHedgeDelay(long v) {
+        hedgeDelay = v;
+    }
+
+    /**
+     * Whether to accept the compressed content and decode it.
+     *
+     * @return true is default.
+     */
+    public boolean isDecompress() {
+        return decompress;
+    }
+
+    /**
+     * Send Accept-Encoding: gzip, deflate if it isn't set, and decode the
+     * content of response by Content-Encoding. Set false to read the raw
+     * content, the Accept-Encoding isn't sent.
+     *
+     * @param v false to disable it.
+     */
+    public void setDecompress(boolean v) {
+        decompress = v;
+    }
+
     public Request() {
         super();
     }
 
+    /**
+     * Copy the request with all options and headers, the body is shared.
+     *
+     * @return the copy.
+     */
+    public Request copy() {
+        Request copy = new Request(this.url, this.body, this.method, this.timeout);
+        copy.requestBody = this.requestBody;
+        copy.retryPolicy = this.retryPolicy;
+        copy.hedgeDelay = this.hedgeDelay;
+        copy.decompress = this.decompress;
+        copy.copyHeaders(this);
+        return copy;
+    }
+
     public Request(String url) {
         super();
         this.url = url;
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.libs.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The request body of network transfer. It is sent in fixed-length mode if
+ * the content length is known, or in chunked mode.
+ *
+ * @author pengxiang.li
+ */
+public abstract class RequestBody {
+
+    private final String contentType;
+
+    protected RequestBody(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * The Content-Type of body, it is used if the request doesn't set the
+     * header.
+     *
+     * @return content type, or null.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * The length of content.
+     *
+     * @return the length, or -1 if unknown then it is sent in chunked mode.
+     */
+    public abstract long getContentLength();
+
+    /**
+     * Open the stream of content.
+     *
+     * @return the content stream.
+     * @throws IOException cause in io error.
+     */
+    public abstract InputStream open() throws IOException;
+
+    /**
+     * The content in memory, it is sent without copy.
+     *
+     * @return the content, or null if the content is streamed.
+     */
+    public byte[] getBytes() {
+        return null;
+    }
+
+    /**
+     * Whether the content can be opened again, the request with a body not
+     * repeatable isn't retried or hedged.
+     *
+     * @return true if each open() returns the whole content.
+     */
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    /**
+     * Write the content to the stream.
+     *
+     * @param out the output stream.
+     * @throws IOException cause in io error.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] bytes = this.getBytes();
+        if (bytes != null) {
+            out.write(bytes);
+            return;
+        }
+
+        byte[] buf = new byte[8192];
+        try (InputStream in = this.open()) {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        }
+    }
+
+    /**
+     * The string body.
+     *
+     * @param content     the content.
+     * @param charset     the charset to encode content.
+     * @param contentType the content type, or null.
+     * @return the body.
+     */
+    public static RequestBody of(String content, Charset charset, String contentType) {
+        return of(content.getBytes(charset == null ? StandardCharsets.UTF_8 : charset), contentType);
+    }
+
+    /**
+     * The bytes body, the array is not copied.
+     *
+     * @param content     the content.
+     * @param contentType the content type, or null.
+     * @return the body.
+     */
+    public static RequestBody of(byte[] content, String contentType) {
+        return new RequestBody(contentType) {
+            @Override
+            public long getContentLength() {
+                return content.length;
+            }
+
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(content);
+            }
+
+            @Override
+            public byte[] getBytes() {
+                return content;
+            }
+        };
+    }
+
+    /**
+     * The buffer body, the remaining content of buffer is sent; the position of
+     * buffer is not changed.
+     *
+     * @param content     the content.
+     * @param contentType the content type, or null.
+     * @return the body.
+     */
+    public static RequestBody of(ByteBuffer content, String contentType) {
+        if (content.hasArray() && content.arrayOffset() == 0 && content.position() == 0
+                && content.remaining() == content.array().length) {
+            return of(content.array(), contentType);
+        }
+
+        return new RequestBody(contentType) {
+            @Override
+            public long getContentLength() {
+                return content.remaining();
+            }
+
+            @Override
+            public InputStream open() {
+                return new ByteBufferInputStream(content.duplicate());
+            }
+        };
+    }
+
+    /**
+     * The stream body, the stream can be read only once and it is closed after
+     * sent.
+     *
+     * @param content     the content.
+     * @param length      the length of content, or -1 if unknown.
+     * @param contentType the content type, or null.
+     * @return the body.
+     */
+    public static RequestBody of(InputStream content, long length, String contentType) {
+        return new RequestBody(contentType) {
+            @Override
+            public long getContentLength() {
+                return length;
+            }
+
+            @Override
+            public InputStream open() {
+                return content;
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The file body.
+     *
+     * @param file        the file path.
+     * @param contentType the content type, or null.
+     * @return the body.
+     * @throws IOException cause in the file not found.
+     */
+    public static RequestBody of(Path file, String contentType) throws IOException {
+        long length = Files.size(file);
+        return new RequestBody(contentType) {
+            @Override
+            public long getContentLength() {
+                return length;
+            }
+
+            @Override
+            public InputStream open() throws IOException {
+                return Files.newInputStream(file);
+            }
+        };
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
@@ -7,23 +7,65 @@
 package cn.brainpoint.febs.libs.net;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * The reponse result of network transfer.
  *
  * @author pengxiang.li
  */
-public class Response extends Headers {
+public class Response extends Headers implements Closeable {
+
+    private static final int CHUNK_SIZE = 8192;
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
 
     private String content;
+    private byte[] contentBytes;
+    private volatile boolean drained = false;
     private URLConnection connection;
+    private InputStream body;
+    /**
+     * The content read by rawBytes() and the remaining.
+     */
+    private volatile InputStream pushedBack;
+    private volatile byte[] buffered;
     private int statusCode;
     private String statusMsg;
+    private String protocol;
+    private volatile boolean decompress = true;
+    /**
+     * The headers are parsed from it at the first access.
+     */
+    private volatile URLConnection headerSource;
+    private volatile LongConsumer contentListener;
+    private InputStream counted;
+    private InputStream countedSource;
 
     /**
      * The status code of response.
@@ -61,10 +103,70 @@ public class Response extends Headers {
         statusMsg = v;
     }
 
+    /**
+     * The protocol of response, e.g. "HTTP/1.1", "HTTP/2".
+     *
+     * @return protocol
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    void setProtocol(String v) {
+        protocol = v;
+    }
+
+    /**
+     * Whether the content is decoded by Content-Encoding (gzip, deflate).
+     *
+     * @return true if decoded.
+     */
+    public boolean isDecompress() {
+        return decompress;
+    }
+
+    /**
+     * Whether the content is decoded by Content-Encoding (gzip, deflate), it is
+     * set by Request.setDecompress().
+     *
+     * @param v false to read the raw content.
+     */
+    public void setDecompress(boolean v) {
+        decompress = v;
+    }
+
+    /**
+     * Set the listener of content size, it is called once with the bytes
+     * received (before decoded) when the content is read to the end, or
+     * closed. It should be set before the content is read.
+     *
+     * @param listener the listener.
+     */
+    public void setContentListener(LongConsumer listener) {
+        contentListener = listener;
+    }
+
+    /**
+     * The Content-Encoding of response, e.g. "gzip"; the Content-Length is the
+     * length of encoded content.
+     *
+     * @return content encoding, or null.
+     */
+    public String getContentEncoding() {
+        return this.getHeader("Content-Encoding");
+    }
+
+    /**
+     * The response of connection, the headers are parsed from the connection
+     * at the first access.
+     *
+     * @param connection the connection.
+     */
     public Response(URLConnection connection) {
         super();
         this.content = null;
         this.connection = connection;
+        this.headerSource = connection;
     }
 
     public Response(URLConnection connection, Map<String, List<String>> headerSet) {
@@ -73,8 +175,162 @@ public class Response extends Headers {
         this.connection = connection;
     }
 
+    @Override
+    protected void loadHeaders() {
+        if (this.headerSource == null) {
+            return;
+        }
+        synchronized (this) {
+            URLConnection conn = this.headerSource;
+            if (conn == null) {
+                return;
+            }
+            // the field 0 is the status line without key.
+            String value;
+            for (int i = 0; (value = conn.getHeaderField(i)) != null; i++) {
+                String key = conn.getHeaderFieldKey(i);
+                if (key != null) {
+                    this.append(canonical(key), value);
+                }
+            }
+            this.headerSource = null;
+        }
+    }
+
+    /**
+     * The response of the engine without URLConnection.
+     *
+     * @param statusCode status code.
+     * @param body       the content stream, the content of error status too.
+     */
+    Response(int statusCode, InputStream body) {
+        super();
+        this.content = null;
+        this.statusCode = statusCode;
+        this.body = body;
+    }
+
+    /**
+     * The decoded content stream, it throws IOException in error status like
+     * HttpURLConnection.
+     */
+    private InputStream getInputStream() throws IOException {
+        return this.decode(this.getRawInputStream());
+    }
+
+    /**
+     * The content stream as received, it isn't decoded by Content-Encoding.
+     */
+    private InputStream getRawInputStream() throws IOException {
+        InputStream in = this.getSourceStream();
+        LongConsumer listener = this.contentListener;
+        if (listener == null || in == null || this.buffered != null) {
+            return in;
+        }
+        synchronized (this) {
+            // the connection returns the same stream every time.
+            if (this.countedSource != in) {
+                this.countedSource = in;
+                this.counted = new CountingInputStream(in, listener);
+            }
+            return this.counted;
+        }
+    }
+
+    private InputStream getSourceStream() throws IOException {
+        if (this.pushedBack != null) {
+            return this.pushedBack;
+        }
+        byte[] buf = this.buffered;
+        if (buf != null) {
+            if (this.statusCode >= 400) {
+                throw new IOException("Server returned HTTP response code: " + this.statusCode);
+            }
+            return new ByteArrayInputStream(buf);
+        }
+        if (this.connection != null) {
+            return this.connection.getInputStream();
+        }
+        if (this.statusCode >= 400) {
+            throw new IOException("Server returned HTTP response code: " + this.statusCode);
+        }
+        return this.body;
+    }
+
+    private InputStream getErrorStream() {
+        byte[] buf = this.buffered;
+        if (buf != null) {
+            return this.statusCode >= 400 ? new ByteArrayInputStream(buf) : null;
+        }
+        if (this.connection != null) {
+            return this.connection instanceof HttpURLConnection
+                    ? ((HttpURLConnection) this.connection).getErrorStream()
+                    : null;
+        }
+        return this.statusCode >= 400 ? this.body : null;
+    }
+
     /**
-     * Get the string content.
+     * Read the content into memory, the content of error status too; then the
+     * content can be read many times, and the connection is released.
+     *
+     * @return this response.
+     * @throws IOException cause in network io error.
+     */
+    public synchronized Response buffer() throws IOException {
+        if (this.buffered != null) {
+            return this;
+        }
+
+        // the encoded content is buffered, it's smaller.
+        InputStream in;
+        try {
+            in = this.getRawInputStream();
+        } catch (IOException e) {
+            in = this.getErrorStream();
+            if (in == null) {
+                throw e;
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buf = new byte[CHUNK_SIZE];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        this.buffered = out.toByteArray();
+        this.drained = true;
+        this.connection = null;
+        this.body = null;
+        return this;
+    }
+
+    /**
+     * Copy the response, the content is read into memory by buffer() and it is
+     * shared by the copies.
+     *
+     * @return the copy.
+     * @throws IOException cause in network io error.
+     */
+    public Response copy() throws IOException {
+        this.buffer();
+        Response copy = new Response(this.statusCode, (InputStream) null);
+        copy.buffered = this.buffered;
+        copy.drained = true;
+        copy.statusMsg = this.statusMsg;
+        copy.protocol = this.protocol;
+        copy.decompress = this.decompress;
+        copy.copyHeaders(this);
+        return copy;
+    }
+
+    /**
+     * Get the string content, it is decoded in the charset of Content-Type, or
+     * UTF-8 if not specified.
      * 
      * @return string content
      * @throws IOException cause in network io error.
@@ -84,18 +340,7 @@ public class Response extends Headers {
             return this.content;
         }
 
-        // 定义 BufferedReader输入流来读取URL的响应
-        this.content = null;
-        StringBuilder con = new StringBuilder("");
-
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(this.connection.getInputStream()))) {
-            String line;
-            while ((line = in.readLine()) != null) {
-                con.append(line);
-            }
-        }
-
-        this.content = con.toString();
+        this.content = new String(this.bytes(), this.getCharset());
         return this.content;
     }
 
@@ -111,7 +356,406 @@ public class Response extends Headers {
 
         // 定义 BufferedReader输入流来读取URL的响应
         BufferedReader in = null;
-        in = new BufferedReader(new InputStreamReader(this.connection.getInputStream()));
+        in = new BufferedReader(new InputStreamReader(this.getInputStream(), this.getCharset()));
+        return in;
+    }
+
+    /**
+     * Get the byte content, it is read into memory. Use stream(), channel(),
+     * chunks() or transferTo() for the large content.
+     *
+     * @return byte content
+     * @throws IOException cause in network io error.
+     */
+    public byte[] bytes() throws IOException {
+        if (this.contentBytes != null) {
+            return this.contentBytes;
+        }
+
+        // presized by Content-Length, it is capped since the header may be wrong;
+        // the buffer grows for the larger content.
+        int size = 4096;
+        String length = this.getHeader("Content-Length");
+        if (length != null) {
+            try {
+                size = (int) Math.min(Math.max(Long.parseLong(length.trim()), 0L), INITIAL_BUFFER_SIZE);
+            } catch (NumberFormatException e) {
+                // use the default size.
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        this.chunks(chunk -> out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining()));
+        this.contentBytes = out.toByteArray();
+        return this.contentBytes;
+    }
+
+    /**
+     * Get the content stream, the content is not buffered in memory.
+     *
+     * Warning: Must read to the end and close the stream, or call close().
+     *
+     * @return content stream
+     * @throws IOException cause in network io error.
+     */
+    public InputStream stream() throws IOException {
+        return this.getInputStream();
+    }
+
+    /**
+     * Get the content stream as received, it isn't decoded by
+     * Content-Encoding, e.g. the gzip content.
+     *
+     * Warning: Must read to the end and close the stream, or call close().
+     *
+     * @return raw content stream
+     * @throws IOException cause in network io error.
+     */
+    public InputStream rawStream() throws IOException {
+        return this.getRawInputStream();
+    }
+
+    /**
+     * Read the content as received into memory, e.g. for the cache.
+     *
+     * @param limit the max size to read.
+     * @return the content, or null if it is larger than limit; the content read
+     *         is put back, the response can be read as usual.
+     */
+    byte[] rawBytes(long limit) throws IOException {
+        InputStream in = this.getSourceStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(CHUNK_SIZE);
+        byte[] buf = new byte[CHUNK_SIZE];
+        try {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+                if (out.size() > limit) {
+                    this.pushedBack = new SequenceInputStream(new ByteArrayInputStream(out.toByteArray()), in);
+                    return null;
+                }
+            }
+            in.close();
+            this.drained = true;
+        } catch (IOException e) {
+            this.close();
+            throw e;
+        }
+
+        LongConsumer listener = this.contentListener;
+        if (listener != null) {
+            listener.accept(out.size());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Get the content channel, the content is not buffered in memory.
+     *
+     * Warning: Must read to the end and close the channel, or call close().
+     *
+     * @return content channel
+     * @throws IOException cause in network io error.
+     */
+    public ReadableByteChannel channel() throws IOException {
+        return Channels.newChannel(this.getInputStream());
+    }
+
+    /**
+     * Read the content chunk by chunk, the stream is closed at the end. The
+     * buffer of chunk is reused, it is only valid in the listener.
+     *
+     * @param listener the chunk listener.
+     * @return the content length.
+     * @throws IOException cause in network io error, or the listener failed.
+     */
+    public long chunks(IChunk listener) throws IOException {
+        return this.chunks(listener, false);
+    }
+
+    private long chunks(IChunk listener, boolean raw) throws IOException {
+        long total = 0;
+        try (InputStream in = raw ? this.getRawInputStream() : this.getInputStream()) {
+            ByteBuffer buf = ByteBuffer.allocate(CHUNK_SIZE);
+            int n;
+            while ((n = in.read(buf.array())) != -1) {
+                if (n == 0) {
+                    continue;
+                }
+                buf.clear();
+                buf.limit(n);
+                total += n;
+                try {
+                    listener.execute(buf);
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            this.drained = true;
+        } catch (IOException e) {
+            this.close();
+            throw e;
+        }
+        return total;
+    }
+
+    /**
+     * Save the content to the file, the content is not buffered in memory.
+     *
+     * @param path the file path, it is created or truncated.
+     * @return the content length.
+     * @throws IOException cause in network or file io error.
+     */
+    public long transferTo(Path path) throws IOException {
+        return this.transferTo(path, false);
+    }
+
+    /**
+     * Save the content as received to the file, e.g. for the cache.
+     */
+    long transferRawTo(Path path) throws IOException {
+        return this.transferTo(path, true);
+    }
+
+    private long transferTo(Path path, boolean raw) throws IOException {
+        long total = 0;
+        try (ReadableByteChannel in = Channels.newChannel(raw ? this.getRawInputStream() : this.getInputStream());
+                FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long n;
+            // transferFrom() returns 0 at the end of the blocking channel.
+            while ((n = out.transferFrom(in, total, TRANSFER_SIZE)) > 0) {
+                total += n;
+            }
+            this.drained = true;
+        } catch (IOException e) {
+            this.close();
+            throw e;
+        }
+        return total;
+    }
+
+    /**
+     * Decode the stream by Content-Encoding, the content is inflated while it
+     * is read. The stream of unsupported encoding (e.g. br) is not decoded.
+     */
+    private InputStream decode(InputStream in) throws IOException {
+        String encoding = this.getHeader("Content-Encoding");
+        if (!this.decompress || encoding == null || in == null) {
+            return in;
+        }
+
+        String[] codings = encoding.split(",");
+        for (int i = 0; i < codings.length; i++) {
+            codings[i] = codings[i].trim().toLowerCase(Locale.ROOT);
+            switch (codings[i]) {
+                case "gzip":
+                case "x-gzip":
+                case "deflate":
+                case "identity":
+                case "":
+                    break;
+                default:
+                    return in;
+            }
+        }
+        // the codings are applied in order, decode in reverse order.
+        for (int i = codings.length - 1; i >= 0; i--) {
+            if (codings[i].equals("gzip") || codings[i].equals("x-gzip")) {
+                in = inflate(in, true);
+            } else if (codings[i].equals("deflate")) {
+                in = inflate(in, false);
+            }
+        }
         return in;
     }
-}
\ No newline at end of file
+
+    private static InputStream inflate(InputStream in, boolean gzip) throws IOException {
+        // the empty content, e.g. HEAD or 304.
+        PushbackInputStream head = new PushbackInputStream(in, 2);
+        byte[] b = new byte[2];
+        int n = 0;
+        int r;
+        while (n < 2 && (r = head.read(b, n, 2 - n)) != -1) {
+            n += r;
+        }
+        if (n == 0) {
+            return head;
+        }
+        head.unread(b, 0, n);
+
+        if (gzip) {
+            return new GZIPInputStream(head, CHUNK_SIZE);
+        }
+        // "deflate" is zlib format, but some servers send the raw deflate.
+        boolean zlib = n == 2 && (b[0] & 0x0f) == 8 && (((b[0] & 0xff) << 8) | (b[1] & 0xff)) % 31 == 0;
+        Inflater inflater = new Inflater(!zlib);
+        return new InflaterInputStream(head, inflater, CHUNK_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+
+    /**
+     * The charset in Content-Type, or UTF-8.
+     */
+    private Charset getCharset() {
+        String type = this.getHeader("Content-Type");
+        if (type != null) {
+            for (String param : type.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                    String name = param.substring(8).trim().replace("\"", "");
+                    try {
+                        return Charset.forName(name);
+                    } catch (Exception e) {
+                        // unsupported charset.
+                    }
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Read the remaining content and close it, the connection can be reused
+     * by keep-alive. Call it if the content isn't read by text() / bytes(), or
+     * the stream isn't read to the end.
+     */
+    @Override
+    public void close() {
+        if (this.drained) {
+            return;
+        }
+        this.drained = true;
+
+        InputStream in;
+        try {
+            in = this.getRawInputStream();
+        } catch (IOException e) {
+            // the error status, e.g. 404.
+            in = this.getErrorStream();
+        }
+        drain(in);
+    }
+
+    /**
+     * Close the content without reading the remaining, the transfer is aborted
+     * and the connection will not be reused. Call it if the response is
+     * discarded, e.g. cancelled or timeout.
+     */
+    public void abort() {
+        if (this.drained) {
+            return;
+        }
+        this.drained = true;
+
+        URLConnection conn = this.connection;
+        if (conn instanceof HttpURLConnection) {
+            ((HttpURLConnection) conn).disconnect();
+            return;
+        }
+        InputStream in = this.body;
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore.
+            }
+        }
+    }
+
+    /**
+     * Read the stream to the end and close it.
+     *
+     * @param in the stream, can be null.
+     */
+    static void drain(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        byte[] buf = new byte[4096];
+        try {
+            while (in.read(buf) != -1) {
+                // discard.
+            }
+        } catch (IOException e) {
+            // the connection will not be reused.
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore.
+            }
+        }
+    }
+
+    /**
+     * Count the bytes read, the listener is called at the end or closed.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private final LongConsumer listener;
+        private long count = 0;
+        private boolean reported = false;
+
+        CountingInputStream(InputStream in, LongConsumer listener) {
+            super(in);
+            this.listener = listener;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                this.report();
+            } else {
+                this.count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) {
+                this.report();
+            } else {
+                this.count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            this.count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                this.report();
+            }
+        }
+
+        private void report() {
+            if (!this.reported) {
+                this.reported = true;
+                this.listener.accept(this.count);
+            }
+        }
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.libs.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * The response cache of GET request, it honors Cache-Control, Expires, ETag
+ * and Last-Modified. The small content is kept in memory, the large content
+ * is kept in the directory if it is specified. Both are evicted in LRU order.
+ * <i>e.g.</i> <code>
+ *     Net.setResponseCache(new ResponseCache(16 * 1024 * 1024, 256 * 1024, Paths.get("/tmp/cache"), 1024 * 1024 * 1024));
+ * </code>
+ *
+ * @author pengxiang.li
+ */
+public class ResponseCache {
+
+    private final long maxMemorySize;
+    private final long maxMemoryEntrySize;
+    private final Path directory;
+    private final long maxDiskSize;
+
+    private long memorySize = 0;
+    private long diskSize = 0;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The response cache in memory.
+     *
+     * @param maxMemorySize      the max total size of content in memory.
+     * @param maxMemoryEntrySize the max size of one content in memory.
+     */
+    public ResponseCache(long maxMemorySize, long maxMemoryEntrySize) {
+        this(maxMemorySize, maxMemoryEntrySize, null, 0);
+    }
+
+    /**
+     * The response cache in memory and disk.
+     *
+     * @param maxMemorySize      the max total size of content in memory.
+     * @param maxMemoryEntrySize the max size of one content in memory, the
+     *                           larger content is stored in the directory.
+     * @param directory          the directory to store the large content, or
+     *                           null.
+     * @param maxDiskSize        the max total size of content in the
+     *                           directory.
+     */
+    public ResponseCache(long maxMemorySize, long maxMemoryEntrySize, Path directory, long maxDiskSize) {
+        this.maxMemorySize = maxMemorySize;
+        this.maxMemoryEntrySize = Math.min(maxMemoryEntrySize, maxMemorySize);
+        this.directory = directory;
+        this.maxDiskSize = directory == null ? 0 : maxDiskSize;
+    }
+
+    /**
+     * Whether the request can use the cache, only GET request without
+     * "Cache-Control: no-store" can use it.
+     *
+     * @param request the request.
+     * @return true if the cache can be used.
+     */
+    public boolean isCacheable(Request request) {
+        String method = request.getMethod();
+        if (method != null && !method.isEmpty() && !"GET".equalsIgnoreCase(method)) {
+            return false;
+        }
+        if (request.getRequestBody() != null) {
+            return false;
+        }
+        return !hasDirective(request.getHeaders("Cache-Control"), "no-store");
+    }
+
+    /**
+     * Get the fresh response in cache.
+     *
+     * @param request the request.
+     * @return the response, or null if the response isn't cached or it is
+     *         stale.
+     */
+    public Response lookup(Request request) {
+        if (hasDirective(request.getHeaders("Cache-Control"), "no-cache")) {
+            return null;
+        }
+
+        Entry entry = this.get(request);
+        if (entry == null || !entry.isFresh(System.currentTimeMillis())) {
+            return null;
+        }
+        try {
+            return entry.toResponse(request);
+        } catch (IOException e) {
+            // the file is removed.
+            this.remove(entry);
+            return null;
+        }
+    }
+
+    /**
+     * Make the conditional request with If-None-Match / If-Modified-Since to
+     * revalidate the stale response in cache.
+     *
+     * @param request the request.
+     * @return the conditional request, or the request itself if it can't be
+     *         revalidated.
+     */
+    public Request revalidate(Request request) {
+        Entry entry = this.get(request);
+        if (entry == null || (entry.etag == null && entry.lastModified == null)) {
+            return request;
+        }
+
+        Request conditional = request.copy();
+        if (entry.etag != null) {
+            conditional.setHeader("If-None-Match", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            conditional.setHeader("If-Modified-Since", entry.lastModified);
+        }
+        return conditional;
+    }
+
+    /**
+     * Update the cache with the response of request. The cached response is
+     * returned for "304 Not Modified", and the cacheable response is stored;
+     * the content is read in this method.
+     *
+     * @param request  the request, not the conditional request.
+     * @param response the response.
+     * @return the response for the request.
+     * @throws IOException cause in network io error.
+     */
+    public Response update(Request request, Response response) throws IOException {
+        long now = System.currentTimeMillis();
+        if (response.getStatusCode() == 304) {
+            Entry entry = this.get(request);
+            if (entry != null) {
+                response.close();
+                entry.refresh(response, now);
+                try {
+                    return entry.toResponse(request);
+                } catch (IOException e) {
+                    this.remove(entry);
+                    throw e;
+                }
+            }
+            return response;
+        }
+
+        if (response.getStatusCode() != 200) {
+            return response;
+        }
+
+        Collection<String> cacheControl = response.getHeaders("Cache-Control");
+        Collection<String> vary = response.getHeaders("Vary");
+        if (hasDirective(cacheControl, "no-store") || hasDirective(vary, "*")) {
+            return response;
+        }
+        if (!isShareable(request, cacheControl)) {
+            // the cache is shared by all callers.
+            return response;
+        }
+        Entry entry = new Entry(request, response, now);
+        if (entry.maxAge <= 0 && entry.etag == null && entry.lastModified == null) {
+            // can't be reused.
+            return response;
+        }
+
+        long length = -1;
+        String contentLength = response.getHeader("Content-Length");
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                // unknown length.
+            }
+        }
+
+        if (length > this.maxMemoryEntrySize && length <= this.maxDiskSize) {
+            // store the large content in file without buffered in memory.
+            Path file = this.directory.resolve(hash(entry.key) + "-" + System.nanoTime() + ".cache");
+            Files.createDirectories(this.directory);
+            entry.size = response.transferRawTo(file);
+            entry.file = file;
+        } else if (length > this.maxMemoryEntrySize) {
+            return response;
+        } else {
+            // the content is stored as received, e.g. gzip, it's decoded when read. The
+            // unknown length is read up to the limit, the larger content isn't cached.
+            byte[] content = response.rawBytes(this.maxMemoryEntrySize);
+            if (content == null) {
+                return response;
+            }
+            entry.size = content.length;
+            entry.content = content;
+        }
+
+        this.put(entry);
+        try {
+            return entry.toResponse(request);
+        } catch (IOException e) {
+            this.remove(entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Remove all responses in cache.
+     */
+    public synchronized void clear() {
+        for (Entry entry : this.entries.values()) {
+            entry.delete();
+        }
+        this.entries.clear();
+        this.memorySize = 0;
+        this.diskSize = 0;
+    }
+
+    /**
+     * The count of responses in cache.
+     *
+     * @return the count.
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    private synchronized Entry get(Request request) {
+        Entry entry = this.entries.get(request.getUrl());
+        if (entry == null || !entry.matchVary(request)) {
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void put(Entry entry) {
+        Entry old = this.entries.put(entry.key, entry);
+        if (old != null) {
+            this.release(old);
+        }
+        if (entry.file != null) {
+            this.diskSize += entry.size;
+        } else {
+            this.memorySize += entry.size;
+        }
+
+        // LRU.
+        Iterator<Entry> itr = this.entries.values().iterator();
+        while (itr.hasNext() && (this.memorySize > this.maxMemorySize || this.diskSize > this.maxDiskSize)) {
+            Entry eldest = itr.next();
+            if (eldest == entry) {
+                continue;
+            }
+            if ((eldest.file == null && this.memorySize > this.maxMemorySize)
+                    || (eldest.file != null && this.diskSize > this.maxDiskSize)) {
+                itr.remove();
+                this.release(eldest);
+            }
+        }
+    }
+
+    private synchronized void remove(Entry entry) {
+        if (this.entries.remove(entry.key, entry)) {
+            this.release(entry);
+        }
+    }
+
+    private void release(Entry entry) {
+        if (entry.file != null) {
+            this.diskSize -= entry.size;
+        } else {
+            this.memorySize -= entry.size;
+        }
+        entry.delete();
+    }
+
+    /**
+     * Whether the response can be stored in the shared cache: the private
+     * response isn't stored, and the response of request with Authorization is
+     * stored only if it is explicitly public.
+     */
+    private static boolean isShareable(Request request, Collection<String> cacheControl) {
+        if (hasDirective(cacheControl, "private")) {
+            return false;
+        }
+        if (request.getHeader("Authorization") == null) {
+            return true;
+        }
+        return hasDirective(cacheControl, "public") || hasDirective(cacheControl, "s-maxage")
+                || hasDirective(cacheControl, "must-revalidate");
+    }
+
+    private static boolean hasDirective(Collection<String> values, String directive) {
+        return directive(values, directive) != null;
+    }
+
+    /**
+     * Get the directive in the header, e.g. "max-age=60".
+     *
+     * @return the value of directive, "" if it has no value, or null if not
+     *         found.
+     */
+    private static String directive(Collection<String> values, String directive) {
+        if (values == null) {
+            return null;
+        }
+        for (String value : values) {
+            for (String item : value.split(",")) {
+                item = item.trim();
+                int eq = item.indexOf('=');
+                String name = eq < 0 ? item : item.substring(0, eq).trim();
+                if (name.equalsIgnoreCase(directive)) {
+                    return eq < 0 ? "" : item.substring(eq + 1).trim().replace("\"", "");
+                }
+            }
+        }
+        return null;
+    }
+
+    private static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value.trim());
+            return date.getTime();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    /**
+     * The cached response.
+     */
+    private static final class Entry {
+        final String key;
+        final int statusCode;
+        final String statusMsg;
+        final Map<String, List<String>> varyHeaders = new HashMap<>();
+        Map<String, List<String>> headers = new HashMap<>();
+        String etag;
+        String lastModified;
+        boolean noCache;
+        /**
+         * in millisecond.
+         */
+        long maxAge;
+        long responseTime;
+        long size;
+        byte[] content;
+        Path file;
+
+        Entry(Request request, Response response, long now) {
+            this.key = request.getUrl();
+            this.statusCode = response.getStatusCode();
+            this.statusMsg = response.getStatusMsg();
+            Collection<String> vary = response.getHeaders("Vary");
+            for (String value : vary) {
+                for (String name : value.split(",")) {
+                    name = name.trim();
+                    if (!name.isEmpty()) {
+                        this.varyHeaders.put(name, new ArrayList<>(request.getHeaders(name)));
+                    }
+                }
+            }
+            this.refresh(response, now);
+        }
+
+        /**
+         * Update the headers and freshness by the response, e.g. 304.
+         */
+        synchronized void refresh(Response response, long now) {
+            Map<String, List<String>> merged = new HashMap<>(this.headers);
+            for (String key : response.getHeaderKeySet()) {
+                merged.put(key, new ArrayList<>(response.getHeaders(key)));
+            }
+            if (response.getStatusCode() == 304) {
+                // the content is not changed.
+                merged.put("Content-Length", this.headers.get("Content-Length"));
+                merged.remove("Transfer-Encoding");
+            }
+            merged.values().removeIf(v -> v == null);
+            this.headers = merged;
+
+            Headers headers = new Headers();
+            for (Map.Entry<String, List<String>> e : merged.entrySet()) {
+                headers.setHeader(e.getKey(), e.getValue());
+            }
+            this.etag = headers.getHeader("ETag");
+            this.lastModified = headers.getHeader("Last-Modified");
+            Collection<String> cacheControl = headers.getHeaders("Cache-Control");
+            this.noCache = hasDirective(cacheControl, "no-cache");
+            this.maxAge = -1;
+            String maxAge = directive(cacheControl, "max-age");
+            if (maxAge != null) {
+                try {
+                    this.maxAge = Long.parseLong(maxAge) * 1000;
+                } catch (NumberFormatException e) {
+                    this.maxAge = 0;
+                }
+            } else {
+                long expires = parseDate(headers.getHeader("Expires"));
+                if (expires >= 0) {
+                    long date = parseDate(headers.getHeader("Date"));
+                    this.maxAge = expires - (date >= 0 ? date : now);
+                }
+            }
+            String age = headers.getHeader("Age");
+            if (age != null && this.maxAge > 0) {
+                try {
+                    this.maxAge -= Long.parseLong(age.trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    // ignore.
+                }
+            }
+            this.responseTime = now;
+        }
+
+        synchronized boolean isFresh(long now) {
+            return !this.noCache && this.maxAge > 0 && now - this.responseTime < this.maxAge;
+        }
+
+        boolean matchVary(Request request) {
+            for (Map.Entry<String, List<String>> e : this.varyHeaders.entrySet()) {
+                if (!new ArrayList<>(request.getHeaders(e.getKey())).equals(e.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Response toResponse(Request request) throws IOException {
+            return this.toResponse(request, this.content);
+        }
+
+        synchronized Response toResponse(Request request, byte[] bytes) throws IOException {
+            InputStream body = bytes != null ? new ByteArrayInputStream(bytes) : Files.newInputStream(this.file);
+            Response response = new Response(this.statusCode, body);
+            response.setStatusMsg(this.statusMsg);
+            response.setDecompress(request.isDecompress());
+            for (Map.Entry<String, List<String>> e : this.headers.entrySet()) {
+                response.setHeader(e.getKey(), e.getValue());
+            }
+            return response;
+        }
+
+        void delete() {
+            if (this.file != null) {
+                try {
+                    Files.deleteIfExists(this.file);
+                } catch (IOException e) {
+                    // ignore.
+                }
+            }
+        }
+    }
+}
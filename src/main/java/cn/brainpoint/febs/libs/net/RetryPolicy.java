@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs.libs.net;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The retry policy of request, the backoff is exponential with jitter.
+ * <i>e.g.</i> <code>
+ *     request.setRetryPolicy(new RetryPolicy(3, 100, 5000));
+ * </code>
+ *
+ * The request with a body from InputStream isn't sent again, the stream can
+ * be read only once.
+ *
+ * @author pengxiang.li
+ */
+public class RetryPolicy {
+
+    /**
+     * The methods can be sent again safely.
+     */
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(
+            Arrays.asList("GET", "HEAD", "PUT", "DELETE", "OPTIONS"));
+
+    private int maxAttempts = 3;
+    /**
+     * in millisecond.
+     */
+    private long initialBackoff = 100;
+    /**
+     * in millisecond.
+     */
+    private long maxBackoff = 5000;
+    /**
+     * The cap of Retry-After, in millisecond.
+     */
+    private long maxRetryAfter = 60000;
+    private double multiplier = 2;
+    /**
+     * 0 is no jitter, 1 is full jitter.
+     */
+    private double jitter = 0.5;
+    private Set<Integer> retryableStatus = new HashSet<>(Arrays.asList(408, 429, 500, 502, 503, 504));
+    private Set<String> retryableMethods = new HashSet<>(IDEMPOTENT_METHODS);
+
+    public RetryPolicy() {
+    }
+
+    /**
+     * @param maxAttempts    the max attempts, including the first one.
+     * @param initialBackoff the backoff before the second attempt, in
+     *                       millisecond.
+     * @param maxBackoff     the max backoff, in millisecond.
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int v) {
+        maxAttempts = v;
+    }
+
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    public void setInitialBackoff(long v) {
+        initialBackoff = v;
+    }
+
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public void setMaxBackoff(long v) {
+        maxBackoff = v;
+    }
+
+    public long getMaxRetryAfter() {
+        return maxRetryAfter;
+    }
+
+    /**
+     * The max wait of Retry-After, it may be larger than the max backoff.
+     *
+     * @param v in millisecond.
+     */
+    public void setMaxRetryAfter(long v) {
+        maxRetryAfter = v;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public void setMultiplier(double v) {
+        multiplier = v;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * The random part of backoff.
+     *
+     * @param v 0 is no jitter, 1 is full jitter.
+     */
+    public void setJitter(double v) {
+        jitter = Math.min(Math.max(v, 0), 1);
+    }
+
+    public Set<Integer> getRetryableStatus() {
+        return retryableStatus;
+    }
+
+    /**
+     * The status code to retry, default is 408, 429, 500, 502, 503, 504.
+     *
+     * @param v status codes.
+     */
+    public void setRetryableStatus(Set<Integer> v) {
+        retryableStatus = v;
+    }
+
+    public Set<String> getRetryableMethods() {
+        return retryableMethods;
+    }
+
+    /**
+     * The methods to retry and hedge, default is the idempotent methods: GET,
+     * HEAD, PUT, DELETE, OPTIONS. Add POST / PATCH to opt in, only if the
+     * server handles the duplicated request.
+     *
+     * @param v the upper case methods.
+     */
+    public void setRetryableMethods(Set<String> v) {
+        retryableMethods = v;
+    }
+
+    /**
+     * Whether the request can be sent again by retry or hedging, override it to
+     * customize. The request with a body not repeatable, e.g. a stream body, is
+     * never sent again.
+     *
+     * @param request the request.
+     * @return true if the method is retryable and the body is repeatable.
+     */
+    public boolean isRetryable(Request request) {
+        return isRepeatable(request) && this.retryableMethods != null
+                && this.retryableMethods.contains(methodOf(request));
+    }
+
+    /**
+     * Whether the method of request is idempotent and the body is repeatable,
+     * it is used to hedge the request without retry policy.
+     *
+     * @param request the request.
+     * @return true if idempotent.
+     */
+    public static boolean isIdempotent(Request request) {
+        return isRepeatable(request) && IDEMPOTENT_METHODS.contains(methodOf(request));
+    }
+
+    private static boolean isRepeatable(Request request) {
+        RequestBody body = request.getRequestBody();
+        return body == null || body.isRepeatable();
+    }
+
+    private static String methodOf(Request request) {
+        String method = request.getMethod();
+        return method == null || method.isEmpty() ? "GET" : method.toUpperCase();
+    }
+
+    /**
+     * Whether to retry the response, override it to customize.
+     *
+     * @param response the response.
+     * @return true to retry.
+     */
+    public boolean isRetryable(Response response) {
+        return this.retryableStatus != null && this.retryableStatus.contains(response.getStatusCode());
+    }
+
+    /**
+     * Whether to retry the exception, default is IOException; override it to
+     * customize.
+     *
+     * @param e the exception.
+     * @return true to retry.
+     */
+    public boolean isRetryable(Exception e) {
+        return e instanceof IOException;
+    }
+
+    /**
+     * The backoff before the attempt. The Retry-After of response is used if
+     * it is larger, even larger than the max backoff; it is capped by the max
+     * Retry-After.
+     *
+     * @param attempt  the next attempt, 2 is the first retry.
+     * @param response the response to retry, or null.
+     * @return the backoff in millisecond.
+     */
+    public long getBackoff(int attempt, Response response) {
+        double backoff = this.initialBackoff * Math.pow(this.multiplier, Math.max(attempt - 2, 0));
+        backoff = Math.min(backoff, this.maxBackoff);
+        backoff = backoff * (1 - this.jitter) + backoff * this.jitter * ThreadLocalRandom.current().nextDouble();
+
+        if (response != null) {
+            String retryAfter = response.getHeader("Retry-After");
+            if (retryAfter != null) {
+                try {
+                    backoff = Math.max(backoff, Math.min(Long.parseLong(retryAfter.trim()) * 1000, this.maxRetryAfter));
+                } catch (NumberFormatException e) {
+                    // http-date is not supported.
+                }
+            }
+        }
+        return (long) backoff;
+    }
+}
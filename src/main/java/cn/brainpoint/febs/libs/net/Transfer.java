@@ -7,15 +7,11 @@
 
 package cn.brainpoint.febs.libs.net;
 
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.function.Consumer;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -31,7 +27,16 @@ import cn.brainpoint.febs.libs.net.ssl.NullHostNameVerifier;
  */
 public final class Transfer {
 
-    private static X509TrustManager defaultTrustManager = new AllTrustManager();
+    private static final int CHUNK_SIZE = 8192;
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static volatile X509TrustManager defaultTrustManager = new AllTrustManager();
+    /**
+     * The socket factory of defaultTrustManager, it is shared by all https
+     * requests, so the TLS session can be resumed.
+     */
+    private static volatile SSLSocketFactory defaultSocketFactory = null;
+    private static volatile SSLContext defaultSSLContext = null;
 
     /**
      * set the trust manager.<br>
@@ -39,8 +44,57 @@ public final class Transfer {
      * 
      * @param trustManager the trust manager object.
      */
-    public static void setDefaultTrustManger(X509TrustManager trustManager) {
+    public static synchronized void setDefaultTrustManger(X509TrustManager trustManager) {
         defaultTrustManager = trustManager;
+        defaultSocketFactory = null;
+        defaultSSLContext = null;
+    }
+
+    /**
+     * Get the ssl socket factory of the default trust manager, it is created at
+     * the first time and rebuilt after the trust manager changed.
+     *
+     * @return the socket factory, or null if no trust manager.
+     * @throws Exception cause in ssl exception.
+     */
+    public static SSLSocketFactory getSSLSocketFactory() throws Exception {
+        SSLSocketFactory ssf = defaultSocketFactory;
+        if (ssf != null) {
+            return ssf;
+        }
+
+        synchronized (Transfer.class) {
+            SSLContext sslContext = getSSLContext();
+            if (defaultSocketFactory == null && sslContext != null) {
+                // 从上述SSLContext对象中得到SSLSocketFactory对象
+                defaultSocketFactory = sslContext.getSocketFactory();
+            }
+            return defaultSocketFactory;
+        }
+    }
+
+    /**
+     * Get the ssl context of the default trust manager, it is created at the
+     * first time and rebuilt after the trust manager changed.
+     *
+     * @return the ssl context, or null if no trust manager.
+     * @throws Exception cause in ssl exception.
+     */
+    public static SSLContext getSSLContext() throws Exception {
+        SSLContext sslContext = defaultSSLContext;
+        if (sslContext != null) {
+            return sslContext;
+        }
+
+        synchronized (Transfer.class) {
+            if (defaultSSLContext == null && defaultTrustManager != null) {
+                TrustManager[] tm = { defaultTrustManager };
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, tm, new java.security.SecureRandom());
+                defaultSSLContext = sslContext;
+            }
+            return defaultSSLContext;
+        }
     }
 
     /**
@@ -57,15 +111,29 @@ public final class Transfer {
      * @return the network response
      * @throws Exception cause in network io exception or ssl exception.
      */
-    @SuppressWarnings("all")
     public static Response request(Request param) throws Exception {
+        return request(param, null);
+    }
+
+    /**
+     * Network request
+     * 
+     * @param param  the request parameter
+     * @param onOpen called with the connection after it is opened, the
+     *               connection can be disconnected to abort the transfer.
+     * @return the network response
+     * @throws Exception cause in network io exception or ssl exception.
+     */
+    @SuppressWarnings("all")
+    public static Response request(Request param, Consumer<HttpURLConnection> onOpen) throws Exception {
         int readTimeout = param.getTimeout() == 0 ? 5000 : param.getTimeout();
         int connTimeout = readTimeout;
         String method = null == param.getMethod() || param.getMethod().isEmpty() ? "GET" : param.getMethod();
         method = method.toUpperCase();
 
         Response result;
-        PrintWriter out = null;
+        OutputStream out = null;
+        HttpURLConnection httpConn = null;
         try {
             String urlNameString = param.getUrl();
 
@@ -80,7 +148,10 @@ public final class Transfer {
 
             // 打开和URL之间的连接
             URLConnection connection = realUrl.openConnection();
-            HttpURLConnection httpConn = (HttpURLConnection) connection;
+            httpConn = (HttpURLConnection) connection;
+            if (onOpen != null) {
+                onOpen.accept(httpConn);
+            }
 
             // ssl.
             if (urlNameString.indexOf("https://") == 0) {
@@ -90,13 +161,8 @@ public final class Transfer {
                  * get ssl socket factory for connect. e.g.
                  * ((HttpsURLConnection)connect).setSSLSocketFactory(ssf);
                  */
-                if (defaultTrustManager != null) {
-                    TrustManager[] tm = { defaultTrustManager };
-                    SSLContext sslContext = SSLContext.getInstance("TLS");
-                    sslContext.init(null, tm, new java.security.SecureRandom());
-                    // 从上述SSLContext对象中得到SSLSocketFactory对象
-                    SSLSocketFactory ssf = sslContext.getSocketFactory();
-
+                SSLSocketFactory ssf = getSSLSocketFactory();
+                if (ssf != null) {
                     httpsConn.setSSLSocketFactory(ssf);
                 }
             }
@@ -108,13 +174,12 @@ public final class Transfer {
             // "Mozilla/4.0 (compatible; MSIE 6.0; Windows NT 5.1;SV1)");
 
             // set headers.
-            if (0 < param.getHeaderLength()) {
-                for (String key : param.getHeaderKeySet()) {
-                    Iterator<String> itr = param.getHeaders(key).iterator();
-                    while (itr.hasNext()) {
-                        connection.addRequestProperty(key, itr.next());
-                    }
-                }
+            for (int i = 0, n = param.headerCount(); i < n; i++) {
+                connection.addRequestProperty(param.headerName(i), param.headerValue(i));
+            }
+
+            if (param.isDecompress() && connection.getRequestProperty("Accept-Encoding") == null) {
+                connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
             }
 
             // 发送POST请求必须设置如下两行
@@ -129,43 +194,44 @@ public final class Transfer {
             httpConn.setRequestMethod(method);
 
             // 获取URLConnection对象对应的输出流
-            // if (method.equals("POST")) {
-            // 发送请求参数
-            if (null != param.getBody() && param.getBody().length() > 0) {
+            // 发送请求参数, 已知长度使用 Content-Length, 否则使用 chunked.
+            RequestBody body = param.getRequestBody();
+            if (null != body) {
                 connection.setDoOutput(true);
-                out = new PrintWriter(connection.getOutputStream());
-                out.print(param.getBody());
-                // flush输出流的缓冲
+                long length = body.getContentLength();
+                if (length >= 0) {
+                    httpConn.setFixedLengthStreamingMode(length);
+                } else {
+                    httpConn.setChunkedStreamingMode(CHUNK_SIZE);
+                }
+                if (body.getContentType() != null && connection.getRequestProperty("Content-Type") == null) {
+                    connection.setRequestProperty("Content-Type", body.getContentType());
+                }
+                out = connection.getOutputStream();
+                body.writeTo(out);
                 out.flush();
             }
-            // }
 
             // 建立实际的连接
             // connection.connect();
 
-            // 获取所有响应头字段
-            Map<String, List<String>> map = connection.getHeaderFields();
-
-            // remove key == null
-            Map<String, List<String>> map1 = new HashMap<>();
-            Iterator<Entry<String, List<String>>> itr = map.entrySet().iterator();
-            while (itr.hasNext()) {
-                Entry<String, List<String>> key = itr.next();
-                if (null != key.getKey()) {
-                    map1.put(key.getKey(), key.getValue());
-                }
-            }
-
-            // // 遍历所有的响应头字段
-            // for (String key : map.keySet()) {
-            // System.out.println(key + "--->" + map.get(key));
-            // }
-            result = new Response(connection, map1);
-            result.setStatusCode(((HttpURLConnection) connection).getResponseCode());
+            // the response headers are parsed lazily from the connection.
+            int statusCode = httpConn.getResponseCode();
+            result = new Response(connection);
+            result.setDecompress(param.isDecompress());
+            result.setStatusCode(statusCode);
             result.setStatusMsg(((HttpURLConnection) connection).getResponseMessage());
+            String statusLine = connection.getHeaderField(0);
+            if (statusLine != null && statusLine.startsWith("HTTP/")) {
+                int space = statusLine.indexOf(' ');
+                result.setProtocol(space > 0 ? statusLine.substring(0, space) : statusLine);
+            }
         } catch (Exception e) {
             // System.out.println("发送请求出现异常！" + e);
-            e.printStackTrace();
+            // 读完错误内容, 连接可以被 keep-alive 复用.
+            if (httpConn != null) {
+                Response.drain(httpConn.getErrorStream());
+            }
             throw e;
         }
         // 使用finally块来关闭输入流
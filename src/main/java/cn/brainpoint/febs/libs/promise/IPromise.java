@@ -6,6 +6,8 @@
 
 package cn.brainpoint.febs.libs.promise;
 
+import java.util.concurrent.Executor;
+
 import cn.brainpoint.febs.PromiseFuture;
 
 /**
@@ -19,6 +21,18 @@ public interface IPromise {
      */
     PromiseFuture execute();
 
+    /**
+     * execute the promise in the specified executor. The default throws
+     * UnsupportedOperationException, the implementation before it was added
+     * can't run in other executor.
+     *
+     * @param executor the executor to run the promise.
+     * @return promise interface.
+     */
+    default PromiseFuture executeOn(Executor executor) {
+        throw new UnsupportedOperationException("executeOn is not supported by " + this.getClass().getName());
+    }
+
     /**
      * The current status of Promise.
      *
@@ -7,18 +7,50 @@
 package cn.brainpoint.febs;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.SSLSocketFactory;
 
 import org.junit.Test;
 
+import com.sun.net.httpserver.HttpServer;
+
+import cn.brainpoint.febs.libs.metrics.DefaultMetrics;
+import cn.brainpoint.febs.libs.metrics.Histogram;
+import cn.brainpoint.febs.libs.net.FormBody;
+import cn.brainpoint.febs.libs.net.HttpClientTransfer;
+import cn.brainpoint.febs.libs.net.MultipartBody;
 import cn.brainpoint.febs.libs.net.Request;
+import cn.brainpoint.febs.libs.net.RequestBody;
+import cn.brainpoint.febs.libs.net.Response;
+import cn.brainpoint.febs.libs.net.ResponseCache;
+import cn.brainpoint.febs.libs.net.RetryPolicy;
+import cn.brainpoint.febs.libs.net.Transfer;
+import cn.brainpoint.febs.libs.net.ssl.AllTrustManager;
 import cn.brainpoint.febs.libs.promise.IPromise;
 
 /**
@@ -26,6 +58,824 @@ import cn.brainpoint.febs.libs.promise.IPromise;
  */
 public class NetTest {
 
+    /**
+     * The binary content of "/bin".
+     */
+    static final byte[] BIN = new byte[300 * 1024 + 7];
+
+    /**
+     * The request count of path.
+     */
+    static final Map<String, AtomicInteger> HITS = new ConcurrentHashMap<>();
+    static final AtomicInteger SLOW_CONCURRENT = new AtomicInteger();
+    static final AtomicBoolean ENDLESS_ABORTED = new AtomicBoolean();
+    static final AtomicInteger SLOW_MAX_CONCURRENT = new AtomicInteger();
+
+    static {
+        for (int i = 0; i < BIN.length; i++) {
+            BIN[i] = (byte) (i * 31);
+        }
+    }
+
+    /**
+     * Start a local http server, "/text" responds "hello", "/lines" responds
+     * utf-8 lines, "/bin" responds BIN, others respond 404. The remote ports of
+     * requests are recorded in ports.
+     */
+    static HttpServer startServer(Set<Integer> ports) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            ports.add(exchange.getRemoteAddress().getPort());
+            String path = exchange.getRequestURI().getPath();
+            int hits = HITS.computeIfAbsent(path, k -> new AtomicInteger())
+                    .incrementAndGet();
+            byte[] body = "hello".getBytes(StandardCharsets.UTF_8);
+            int code = path.equals("/text") ? 200 : 404;
+            if (path.equals("/lines")) {
+                body = "行1\r\n行2\n".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+                code = 200;
+            } else if (path.equals("/bin")) {
+                body = BIN;
+                exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+                code = 200;
+            } else if (path.equals("/flaky")) {
+                // 503 twice, then 200.
+                code = hits % 3 == 0 ? 200 : 503;
+            } else if (path.equals("/busy")) {
+                // 503 with Retry-After of 1s, then 200.
+                if (hits % 2 == 1) {
+                    exchange.getResponseHeaders().add("Retry-After", "1");
+                }
+                code = hits % 2 == 0 ? 200 : 503;
+            } else if (path.equals("/straggler")) {
+                // the odd request is slow.
+                if (hits % 2 == 1) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                    }
+                }
+                code = 200;
+            } else if (path.equals("/slow")) {
+                int cur = SLOW_CONCURRENT.incrementAndGet();
+                SLOW_MAX_CONCURRENT.accumulateAndGet(cur, Math::max);
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                }
+                SLOW_CONCURRENT.decrementAndGet();
+                code = 200;
+            } else if (path.equals("/fresh")) {
+                exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+                code = 200;
+            } else if (path.equals("/private")) {
+                exchange.getResponseHeaders().add("Cache-Control", "private, max-age=60");
+                code = 200;
+            } else if (path.equals("/public")) {
+                exchange.getResponseHeaders().add("Cache-Control", "public, max-age=60");
+                code = 200;
+            } else if (path.equals("/etag")) {
+                exchange.getResponseHeaders().add("Cache-Control", "no-cache");
+                exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                code = "\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match")) ? 304 : 200;
+                if (code == 304) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+            } else if (path.equals("/gzip") || path.equals("/deflate")) {
+                // compress BIN if it's accepted.
+                String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                String coding = path.substring(1);
+                body = BIN;
+                if (accept != null && accept.contains(coding)) {
+                    ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+                    try (OutputStream out = coding.equals("gzip") ? new GZIPOutputStream(zipped)
+                            : new DeflaterOutputStream(zipped)) {
+                        out.write(BIN);
+                    }
+                    body = zipped.toByteArray();
+                    exchange.getResponseHeaders().add("Content-Encoding", coding);
+                }
+                exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+                code = 200;
+            } else if (path.equals("/chunked")) {
+                // BIN of unknown length.
+                exchange.getResponseHeaders().add("Cache-Control", "max-age=60");
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(BIN);
+                }
+                return;
+            } else if (path.equals("/endless")) {
+                // stream until the client aborts.
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    byte[] chunk = new byte[64 * 1024];
+                    for (int i = 0; i < 4096; i++) {
+                        out.write(chunk);
+                    }
+                } catch (IOException e) {
+                    ENDLESS_ABORTED.set(true);
+                }
+                return;
+            } else if (path.equals("/echo")) {
+                // respond the request body and its headers.
+                ByteArrayOutputStream req = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = exchange.getRequestBody().read(buf)) != -1) {
+                    req.write(buf, 0, n);
+                }
+                body = req.toByteArray();
+                String type = exchange.getRequestHeaders().getFirst("Content-Type");
+                String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                exchange.getResponseHeaders().add("X-Type", type == null ? "" : type);
+                exchange.getResponseHeaders().add("X-Length", length == null ? "chunked" : length);
+                code = 200;
+            }
+            exchange.sendResponseHeaders(code, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return server;
+    }
+
+    static String localUrl(HttpServer server, String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        String tag = "Net keep-alive: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        // the socket factory is shared until the trust manager changed.
+        SSLSocketFactory ssf = Transfer.getSSLSocketFactory();
+        if (ssf != Transfer.getSSLSocketFactory()) {
+            Log.err(tag + "socket factory is not cached");
+        }
+        Transfer.setDefaultTrustManger(new AllTrustManager());
+        if (ssf == Transfer.getSSLSocketFactory()) {
+            Log.err(tag + "socket factory is not rebuilt");
+        }
+
+        Set<Integer> ports = ConcurrentHashMap.newKeySet();
+        HttpServer server = startServer(ports);
+        try {
+            for (int i = 0; i < 3; i++) {
+                Object ret = Febs.Net.fetch(localUrl(server, "/text")).then(res -> {
+                    return res.text();
+                }).execute().get();
+                if (!"hello".equals(ret)) {
+                    Log.err(tag + "text error: " + ret);
+                }
+
+                // the content of error status is drained by close().
+                Response resp = (Response) Febs.Net.fetch(localUrl(server, "/none")).execute().get();
+                if (resp.getStatusCode() != 404) {
+                    Log.err(tag + "status error: " + resp.getStatusCode());
+                }
+                resp.close();
+            }
+        } finally {
+            server.stop(0);
+        }
+
+        if (ports.size() != 1) {
+            Log.err(tag + "connection is not reused: " + ports);
+        }
+    }
+
+    @Test
+    public void testHttpClientEngine() throws Exception {
+        String tag = "Net HttpClient engine: ";
+        Log.out("========================================");
+        Log.out(tag + "begin, supported: " + HttpClientTransfer.isSupported());
+
+        Set<Integer> ports = ConcurrentHashMap.newKeySet();
+        HttpServer server = startServer(ports);
+        Net.setEngine(Net.ENGINE_HTTP_CLIENT);
+        try {
+            ArrayList<IPromise> all = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                all.add(Febs.Net.fetch(localUrl(server, "/text")).then(res -> {
+                    return res.text();
+                }));
+            }
+            Object[] ret = (Object[]) Promise.all(all).execute().get();
+            for (Object r : ret) {
+                if (!"hello".equals(r)) {
+                    Log.err(tag + "text error: " + r);
+                }
+            }
+
+            // the chain goes on in the executor, not in the io thread of HttpClient.
+            ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "febs-test"));
+            try {
+                Object thread = Febs.Net.fetch(localUrl(server, "/text"), executor).then(res -> {
+                    res.close();
+                    return Thread.currentThread().getName();
+                }).execute().get();
+                if (!"febs-test".equals(thread)) {
+                    Log.err(tag + "chain runs in io thread: " + thread);
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            Response resp = (Response) Febs.Net.fetch(localUrl(server, "/none")).execute().get();
+            if (resp.getStatusCode() != 404 || resp.getHeader("content-length") == null) {
+                Log.err(tag + "response error: " + resp.getStatusCode());
+            }
+            try {
+                resp.text();
+                Log.err(tag + "text of error status");
+            } catch (IOException e) {
+                Log.out(tag + e.getMessage());
+            }
+
+            // h2c upgrade falls back to HTTP/1.1, the local server doesn't support HTTP/2.
+            Net.setEngine(Net.ENGINE_HTTP2);
+            resp = (Response) Febs.Net.fetch(localUrl(server, "/text")).execute().get();
+            if (!Net.ENGINE_HTTP2.equals(Net.getEngine()) || !"hello".equals(resp.text())
+                    || !"HTTP/1.1".equals(resp.getProtocol())) {
+                Log.err(tag + "http2 fallback error: " + resp.getProtocol());
+            }
+        } finally {
+            Net.setEngine(Net.ENGINE_URL_CONNECTION);
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        String tag = "Net stream: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        HttpServer server = startServer(ConcurrentHashMap.newKeySet());
+        Path file = Files.createTempFile("febs", ".bin");
+        try {
+            Object ret = Febs.Net.fetch(localUrl(server, "/lines")).then(res -> {
+                return res.text();
+            }).execute().get();
+            if (!"行1\r\n行2\n".equals(ret)) {
+                Log.err(tag + "text error: " + ret);
+            }
+
+            Response resp = (Response) Febs.Net.fetch(localUrl(server, "/bin")).execute().get();
+            if (!Arrays.equals(BIN, resp.bytes())) {
+                Log.err(tag + "bytes error");
+            }
+
+            resp = (Response) Febs.Net.fetch(localUrl(server, "/bin")).execute().get();
+            long[] chunks = { 0, 0 };
+            long total = resp.chunks(chunk -> {
+                chunks[0]++;
+                chunks[1] += chunk.remaining();
+            });
+            if (total != BIN.length || chunks[1] != BIN.length || chunks[0] < 2) {
+                Log.err(tag + "chunks error: " + total);
+            }
+
+            resp = (Response) Febs.Net.fetch(localUrl(server, "/bin")).execute().get();
+            if (resp.transferTo(file) != BIN.length
+                    || !Arrays.equals(BIN, Files.readAllBytes(file))) {
+                Log.err(tag + "transferTo error");
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        String tag = "Net metrics: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        long p50 = histogram.getPercentile(50);
+        if (histogram.getCount() != 1000 || histogram.getMax() != 1000000 || Math.abs(p50 - 500000) > 500000 / 64
+                || histogram.getPercentile(100) != 1000000) {
+            Log.err(tag + "histogram error: " + p50);
+        }
+
+        DefaultMetrics metrics = new DefaultMetrics();
+        Febs.setMetrics(metrics);
+        HttpServer server = startServer(ConcurrentHashMap.newKeySet());
+        try {
+            Febs.Net.fetch(localUrl(server, "/bin")).then(res -> {
+                return res.bytes();
+            }).execute().get();
+            Response resp = (Response) Febs.Net.fetch(localUrl(server, "/none")).execute().get();
+            resp.close();
+
+            DefaultMetrics.HostMetrics host = metrics.getHosts().get("127.0.0.1:" + server.getAddress().getPort());
+            if (host == null || host.getLatency().getCount() != 2 || host.getStatusCodes().get(200) != 1
+                    || host.getStatusCodes().get(404) != 1 || host.getBytes() != BIN.length) {
+                Log.err(tag + "fetch error: " + metrics.snapshot());
+            }
+            if (metrics.getPromisesCreated() == 0 || metrics.getPromisesFulfilled() < 2
+                    || metrics.getTaskRun().getCount() == 0 || metrics.getChainLatency().getCount() < 2) {
+                Log.err(tag + "promise error: " + metrics.snapshot());
+            }
+            if (!metrics.snapshot().containsKey("executor.queue")) {
+                Log.err(tag + "snapshot error: " + metrics.snapshot());
+            }
+        } finally {
+            Febs.setMetrics(null);
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testHeaders() throws Exception {
+        String tag = "Net headers: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        Request req = new Request();
+        req.setHeader("content-type", "text/plain");
+        req.addHeader("X-CUSTOM-header", "a");
+        req.addHeader("x-custom-header", "b");
+        req.setHeader("Accept", "*/*");
+        if (!"text/plain".equals(req.getHeader("CONTENT-TYPE"))
+                || !Arrays.asList("a", "b").equals(new ArrayList<>(req.getHeaders("X-Custom-Header")))
+                || req.getHeaderLength() != 3 || !req.getHeaderKeySet().contains("X-Custom-Header")
+                || !req.getHeaders("none").isEmpty() || req.getHeader("none") != null) {
+            Log.err(tag + "get error: " + req.getHeaderKeySet());
+        }
+        req.setHeader("X-Custom-Header", "c");
+        req.removeHeader("accept");
+        if (!Arrays.asList("c").equals(new ArrayList<>(req.getHeaders("x-custom-header")))
+                || req.getHeaderLength() != 2 || req.getHeader("Accept") != null) {
+            Log.err(tag + "set error: " + req.getHeaderKeySet());
+        }
+
+        // the response headers are parsed from the connection.
+        HttpServer server = startServer(ConcurrentHashMap.newKeySet());
+        try {
+            Response resp = (Response) Febs.Net.fetch(localUrl(server, "/fresh")).execute().get();
+            resp.close();
+            if (!"max-age=60".equals(resp.getHeader("cache-control"))
+                    || !"5".equals(resp.getHeader("Content-Length"))) {
+                Log.err(tag + "response error: " + resp.getHeaderKeySet());
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        String tag = "Net abort: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        HttpServer server = startServer(ConcurrentHashMap.newKeySet());
+        try {
+            for (String engine : new String[] { Net.ENGINE_URL_CONNECTION, Net.ENGINE_HTTP_CLIENT }) {
+                Net.setEngine(engine);
+                ENDLESS_ABORTED.set(false);
+                Response resp = (Response) Febs.Net.fetch(localUrl(server, "/endless")).execute().get();
+                resp.stream().read();
+
+                // the remaining content isn't read.
+                long now = System.currentTimeMillis();
+                resp.abort();
+                while (!ENDLESS_ABORTED.get() && System.currentTimeMillis() - now < 3000) {
+                    Thread.sleep(10);
+                }
+                if (!ENDLESS_ABORTED.get()) {
+                    Log.err(tag + engine + " the transfer is not aborted");
+                }
+            }
+        } finally {
+            Net.setEngine(Net.ENGINE_URL_CONNECTION);
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        String tag = "Net compression: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        HttpServer server = startServer(ConcurrentHashMap.newKeySet());
+        try {
+            String[] engines = { Net.ENGINE_URL_CONNECTION, Net.ENGINE_HTTP_CLIENT };
+            for (String engine : engines) {
+                Net.setEngine(engine);
+                for (String path : new String[] { "/gzip", "/deflate" }) {
+                    Response resp = (Response) Febs.Net.fetch(localUrl(server, path)).execute().get();
+                    if (!path.substring(1).equals(resp.getContentEncoding()) || !Arrays.equals(BIN, resp.bytes())) {
+                        Log.err(tag + engine + " decode error: " + path);
+                    }
+                }
+
+                // the raw content.
+                Request req = new Request(localUrl(server, "/gzip"));
+                req.setDecompress(false);
+                req.setHeader("Accept-Encoding", "gzip");
+                Response resp = (Response) Febs.Net.fetch(req).execute().get();
+                byte[] raw = resp.bytes();
+                if (raw.length >= BIN.length || (raw[0] & 0xff) != 0x1f || (raw[1] & 0xff) != 0x8b) {
+                    Log.err(tag + engine + " raw error");
+                }
+            }
+
+            // the cache stores the compressed content, it's decoded when read.
+            int hits = HITS.get("/gzip").get();
+            ResponseCache cache = new ResponseCache(
+                    1024 * 1024, 1024 * 1024);
+            Net.setResponseCache(cache);
+            for (int i = 0; i < 2; i++) {
+                Response resp = (Response) Febs.Net.fetch(localUrl(server, "/gzip")).execute().get();
+                if (!Arrays.equals(BIN, resp.bytes())) {
+                    Log.err(tag + "cache decode error");
+                }
+            }
+            if (cache.size() != 1 || HITS.get("/gzip").get() != hits + 1) {
+                Log.err(tag + "cache error");
+            }
+        } finally {
+            Net.setEngine(Net.ENGINE_URL_CONNECTION);
+            Net.setResponseCache(null);
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testRequestBody() throws Exception {
+        String tag = "Net request body: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        HttpServer server = startServer(ConcurrentHashMap.newKeySet());
+        Path file = Files.createTempFile("febs", ".bin");
+        Files.write(file, BIN);
+        try {
+            for (String engine : new String[] { Net.ENGINE_URL_CONNECTION, Net.ENGINE_HTTP_CLIENT }) {
+                Net.setEngine(engine);
+
+                Request req = new Request(localUrl(server, "/echo"), null, "post");
+                req.setRequestBody(RequestBody.of(file, "application/octet-stream"));
+                Response resp = (Response) Febs.Net.fetch(req).execute().get();
+                if (!Arrays.equals(BIN, resp.bytes()) || !String.valueOf(BIN.length).equals(resp.getHeader("X-Length"))) {
+                    Log.err(tag + engine + " file body error");
+                }
+
+                req.setRequestBody(RequestBody
+                        .of(new ByteArrayInputStream(BIN), -1, null));
+                resp = (Response) Febs.Net.fetch(req).execute().get();
+                if (!Arrays.equals(BIN, resp.bytes()) || !"chunked".equals(resp.getHeader("X-Length"))) {
+                    Log.err(tag + engine + " stream body error");
+                }
+
+                req.setRequestBody(new FormBody().add("a", "1 2").add("名", "&"));
+                resp = (Response) Febs.Net.fetch(req).execute().get();
+                if (!"a=1+2&%E5%90%8D=%26".equals(resp.text())
+                        || !resp.getHeader("X-Type").startsWith("application/x-www-form-urlencoded")) {
+                    Log.err(tag + engine + " form body error");
+                }
+
+                MultipartBody multipart = new MultipartBody(
+                        "xyz").add("a", "1").add("f", "b.txt",
+                                RequestBody.of("hi", StandardCharsets.UTF_8, "text/plain"));
+                req.setRequestBody(multipart);
+                resp = (Response) Febs.Net.fetch(req).execute().get();
+                String expect = "--xyz\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\n1\r\n"
+                        + "--xyz\r\nContent-Disposition: form-data; name=\"f\"; filename=\"b.txt\"\r\n"
+                        + "Content-Type: text/plain\r\n\r\nhi\r\n--xyz--\r\n";
+                if (!expect.equals(resp.text()) || !String.valueOf(multipart.getContentLength()).equals(resp.getHeader("X-Length"))
+                        || !"multipart/form-data; boundary=xyz".equals(resp.getHeader("X-Type"))) {
+                    Log.err(tag + engine + " multipart body error");
+                }
+
+                // the string body is encoded in UTF-8.
+                req.setBody("中文");
+                resp = (Response) Febs.Net.fetch(req).execute().get();
+                if (!"中文".equals(resp.text())) {
+                    Log.err(tag + engine + " string body error");
+                }
+            }
+        } finally {
+            Net.setEngine(Net.ENGINE_URL_CONNECTION);
+            Files.deleteIfExists(file);
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testResponseCache() throws Exception {
+        String tag = "Net response cache: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        HttpServer server = startServer(ConcurrentHashMap.newKeySet());
+        Path dir = Files.createTempDirectory("febs");
+        ResponseCache cache = new ResponseCache(1024 * 1024,
+                1024, dir, 1024 * 1024);
+        Net.setResponseCache(cache);
+        try {
+            for (String path : new String[] { "/fresh", "/etag" }) {
+                HITS.remove(path);
+                for (int i = 0; i < 3; i++) {
+                    Object ret = Febs.Net.fetch(localUrl(server, path)).then(res -> {
+                        return res.getStatusCode() + res.text();
+                    }).execute().get();
+                    if (!"200hello".equals(ret)) {
+                        Log.err(tag + path + " content error: " + ret);
+                    }
+                }
+            }
+            // the fresh response comes from cache, the no-cache response is revalidated.
+            if (HITS.get("/fresh").get() != 1 || HITS.get("/etag").get() != 3) {
+                Log.err(tag + "hits error: " + HITS);
+            }
+
+            // the large content is stored in disk.
+            HITS.remove("/bin");
+            for (int i = 0; i < 2; i++) {
+                Response resp = (Response) Febs.Net.fetch(localUrl(server, "/bin")).execute().get();
+                if (!Arrays.equals(BIN, resp.bytes())) {
+                    Log.err(tag + "bin content error");
+                }
+            }
+            if (cache.size() != 3 || HITS.get("/bin").get() != 1) {
+                Log.err(tag + "size error: " + cache.size());
+            }
+            try (Stream<Path> files = Files.list(dir)) {
+                if (files.count() != 1) {
+                    Log.err(tag + "disk error");
+                }
+            }
+
+            // the content of unknown length larger than the memory entry isn't cached.
+            for (int i = 0; i < 2; i++) {
+                Response resp = (Response) Febs.Net.fetch(localUrl(server, "/chunked")).execute().get();
+                if (!Arrays.equals(BIN, resp.bytes())) {
+                    Log.err(tag + "chunked content error");
+                }
+            }
+            if (cache.size() != 3 || HITS.get("/chunked").get() != 2) {
+                Log.err(tag + "chunked is cached");
+            }
+
+            // the private response isn't stored in the shared cache.
+            HITS.remove("/private");
+            for (int i = 0; i < 2; i++) {
+                ((Response) Febs.Net.fetch(localUrl(server, "/private")).execute().get()).close();
+            }
+            if (HITS.get("/private").get() != 2) {
+                Log.err(tag + "private response is cached");
+            }
+
+            // the response of authorized request is stored only if it is public.
+            for (String path : new String[] { "/fresh", "/public" }) {
+                HITS.remove(path);
+                for (int i = 0; i < 2; i++) {
+                    Request auth = new Request(localUrl(server, path + "?user=a"));
+                    auth.setHeader("Authorization", "Bearer a");
+                    ((Response) Febs.Net.fetch(auth).execute().get()).close();
+                }
+            }
+            if (HITS.get("/fresh").get() != 2 || HITS.get("/public").get() != 1) {
+                Log.err(tag + "authorized response error: " + HITS);
+            }
+
+            // the conditional request keeps the options.
+            Request req = new Request(localUrl(server, "/etag"));
+            req.setDecompress(false);
+            req.setRetryPolicy(new RetryPolicy());
+            req.setHedgeDelay(100);
+            Request conditional = cache.revalidate(req);
+            if (conditional == req || conditional.isDecompress() || conditional.getRetryPolicy() != req.getRetryPolicy()
+                    || conditional.getHedgeDelay() != 100 || conditional.getHeader("If-None-Match") == null) {
+                Log.err(tag + "revalidate error");
+            }
+        } finally {
+            Net.setResponseCache(null);
+            cache.clear();
+            Files.deleteIfExists(dir);
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        String tag = "Net single flight: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        HttpServer server = startServer(ConcurrentHashMap.newKeySet());
+        Net.setSingleFlight(true, "Accept");
+        try {
+            HITS.remove("/slow");
+            ArrayList<IPromise> all = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                all.add(Febs.Net.fetch(localUrl(server, "/slow")).then(res -> {
+                    return res.text();
+                }));
+            }
+            Object[] ret = (Object[]) Promise.all(all).execute().get();
+            for (Object r : ret) {
+                if (!"hello".equals(r)) {
+                    Log.err(tag + "text error: " + r);
+                }
+            }
+            if (HITS.get("/slow").get() != 1) {
+                Log.err(tag + "hits error: " + HITS.get("/slow"));
+            }
+
+            // the different key header is not shared.
+            Request req = new Request(localUrl(server, "/slow"));
+            req.setHeader("Accept", "text/plain");
+            Promise.all(new ArrayList<>(Arrays.asList(Febs.Net.fetch(req), Febs.Net.fetch(localUrl(server, "/slow")))))
+                    .execute().get();
+            if (HITS.get("/slow").get() != 3) {
+                Log.err(tag + "hits error: " + HITS.get("/slow"));
+            }
+        } finally {
+            Net.setSingleFlight(false);
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testHostLimit() throws Exception {
+        String tag = "Net host limit: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        HttpServer server = startServer(ConcurrentHashMap.newKeySet());
+        Net.setEngine(Net.ENGINE_HTTP_CLIENT);
+        Net.setHostLimit(2);
+        try {
+            SLOW_MAX_CONCURRENT.set(0);
+            ArrayList<IPromise> all = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                all.add(Febs.Net.fetch(localUrl(server, "/slow")).then(res -> {
+                    return res.text();
+                }));
+            }
+            Promise.all(all).execute().get();
+            if (SLOW_MAX_CONCURRENT.get() != 2) {
+                Log.err(tag + "max concurrent: " + SLOW_MAX_CONCURRENT.get());
+            }
+
+            // the ports of host are limited separately.
+            HttpServer other = startServer(ConcurrentHashMap.newKeySet());
+            Net.setHostLimit(1);
+            try {
+                SLOW_MAX_CONCURRENT.set(0);
+                all.clear();
+                for (int i = 0; i < 3; i++) {
+                    all.add(Febs.Net.fetch(localUrl(server, "/slow")));
+                    all.add(Febs.Net.fetch(localUrl(other, "/slow")));
+                }
+                Promise.all(all).execute().get();
+                if (SLOW_MAX_CONCURRENT.get() != 2) {
+                    Log.err(tag + "ports max concurrent: " + SLOW_MAX_CONCURRENT.get());
+                }
+            } finally {
+                other.stop(0);
+            }
+
+            // 20 requests per second, burst 1.
+            Net.setHostLimit(0);
+            Net.setRateLimit(20, 1);
+            long start = System.currentTimeMillis();
+            all.clear();
+            for (int i = 0; i < 5; i++) {
+                all.add(Febs.Net.fetch(localUrl(server, "/text")));
+            }
+            Promise.all(all).execute().get();
+            long elapsed = System.currentTimeMillis() - start;
+            if (elapsed < 190) {
+                Log.err(tag + "rate limit error: " + elapsed + "ms");
+            }
+
+            // the idle hosts are removed.
+            HostLimiter limiter = new HostLimiter();
+            limiter.setMaxInFlight(1);
+            for (int i = 0; i < 100; i++) {
+                String host = "host" + i;
+                limiter.acquire(host, () -> limiter.release(host));
+            }
+            if (limiter.hostCount() != 0) {
+                Log.err(tag + "idle hosts are not removed: " + limiter.hostCount());
+            }
+        } finally {
+            Net.setHostLimit(0);
+            Net.setRateLimit(0, 1);
+            Net.setEngine(Net.ENGINE_URL_CONNECTION);
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        String tag = "Net retry: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        HttpServer server = startServer(ConcurrentHashMap.newKeySet());
+        try {
+            HITS.remove("/flaky");
+            Request req = new Request(localUrl(server, "/flaky"));
+            req.setRetryPolicy(new RetryPolicy(3, 50, 1000));
+            long start = System.currentTimeMillis();
+            Object ret = Febs.Net.fetch(req).then(res -> {
+                return res.text();
+            }).execute().get();
+            if (!"hello".equals(ret) || HITS.get("/flaky").get() != 3) {
+                Log.err(tag + "retry error: " + ret);
+            }
+            // backoff 50ms and 100ms with jitter.
+            if (System.currentTimeMillis() - start < 75) {
+                Log.err(tag + "backoff error");
+            }
+
+            // the last response is returned.
+            HITS.remove("/flaky");
+            req.setRetryPolicy(new RetryPolicy(2, 10, 1000));
+            Response resp = (Response) Febs.Net.fetch(req).execute().get();
+            if (resp.getStatusCode() != 503 || HITS.get("/flaky").get() != 2) {
+                Log.err(tag + "max attempts error");
+            }
+
+            // Retry-After is longer than the max backoff.
+            HITS.remove("/busy");
+            Request busy = new Request(localUrl(server, "/busy"));
+            busy.setRetryPolicy(new RetryPolicy(2, 10, 100));
+            start = System.currentTimeMillis();
+            resp = (Response) Febs.Net.fetch(busy).execute().get();
+            if (resp.getStatusCode() != 200 || System.currentTimeMillis() - start < 1000) {
+                Log.err(tag + "retry-after error");
+            }
+
+            // the non-idempotent method isn't retried unless the policy opts in.
+            HITS.remove("/flaky");
+            Request post = new Request(localUrl(server, "/flaky"), "a=1", "POST");
+            post.setRetryPolicy(new RetryPolicy(3, 10, 1000));
+            resp = (Response) Febs.Net.fetch(post).execute().get();
+            if (resp.getStatusCode() != 503 || HITS.get("/flaky").get() != 1) {
+                Log.err(tag + "post is retried");
+            }
+            post.getRetryPolicy().getRetryableMethods().add("POST");
+            resp = (Response) Febs.Net.fetch(post).execute().get();
+            if (resp.getStatusCode() != 200 || HITS.get("/flaky").get() != 3) {
+                Log.err(tag + "post opt-in error");
+            }
+
+            // the stream body can be sent only once, it isn't retried or hedged.
+            HITS.remove("/flaky");
+            Request put = new Request(localUrl(server, "/flaky"), null, "PUT");
+            byte[] content = "a=1".getBytes(StandardCharsets.UTF_8);
+            put.setRequestBody(RequestBody.of(new ByteArrayInputStream(content), content.length, null));
+            put.setRetryPolicy(new RetryPolicy(3, 10, 1000));
+            put.setHedgeDelay(10);
+            resp = (Response) Febs.Net.fetch(put).execute().get();
+            if (resp.getStatusCode() != 503 || HITS.get("/flaky").get() != 1) {
+                Log.err(tag + "stream body is sent again");
+            }
+            put.setRequestBody(RequestBody.of(content, null));
+            put.setHedgeDelay(0);
+            resp = (Response) Febs.Net.fetch(put).execute().get();
+            if (resp.getStatusCode() != 200 || HITS.get("/flaky").get() != 3) {
+                Log.err(tag + "bytes body retry error");
+            }
+
+            // the hedged request answers first.
+            HITS.remove("/straggler");
+            req = new Request(localUrl(server, "/straggler"));
+            req.setHedgeDelay(100);
+            start = System.currentTimeMillis();
+            ret = Febs.Net.fetch(req).then(res -> {
+                return res.text();
+            }).execute().get();
+            long elapsed = System.currentTimeMillis() - start;
+            if (!"hello".equals(ret) || elapsed > 800 || HITS.get("/straggler").get() != 2) {
+                Log.err(tag + "hedge error: " + elapsed + "ms");
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
     @Test
     public void testGet() {
         String tag = "Net get: ";
@@ -6,6 +6,21 @@
 
 package cn.brainpoint.febs;
 
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cn.brainpoint.febs.exception.FebsRuntimeException;
+import cn.brainpoint.febs.libs.metrics.DefaultMetrics;
+import cn.brainpoint.febs.libs.promise.IPromise;
 import cn.brainpoint.febs.libs.promise.IReject;
 import cn.brainpoint.febs.libs.promise.IResolve;
 import org.junit.Test;
@@ -105,6 +120,34 @@ public class PromiseTest {
         }
     }
 
+    /**
+     * 测试 then 返回嵌套的 promise.
+     */
+    @Test
+    public void testNestedPromise() {
+        String tag = "promise NestedPromise: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        long now = System.currentTimeMillis();
+        try {
+            // the chain goes on after the nested promise finished, with its result.
+            Object ret = makePromiseTemplate2().then(res -> {
+                return Febs.Utils.sleep(300);
+            }).then(res -> {
+                return new Promise<Integer>((IResolve<Integer> resolve, IReject reject) -> {
+                    resolve.execute(5);
+                });
+            }).execute().get();
+            long elapsed = System.currentTimeMillis() - now;
+            if (!Integer.valueOf(5).equals(ret) || elapsed < 300) {
+                Log.err(tag + "nested error: " + ret + " " + elapsed + "ms");
+            }
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+    }
+
     /**
      * 测试fail是否能正确触发.
      */
@@ -260,4 +303,654 @@ public class PromiseTest {
             promise2.setTag(1);
         }
     }
+
+    /**
+     * 测试 all 并行执行.
+     */
+    @Test
+    public void testAll() {
+        String tag = "promise All: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        long now = System.currentTimeMillis();
+        try {
+            Object[] ret = (Object[]) Promise.all(makePromiseTimeout(), makePromiseTemplate2()).execute().get();
+            long ml = System.currentTimeMillis() - now;
+            Log.out(tag + " ms: %d", ml);
+            if (ml > 1500) {
+                Log.err(tag + "members are not executed in parallel");
+            }
+            if (ret.length != 2 || ret[0] != null || (Integer) ret[1] != 2) {
+                Log.err(tag + "result error");
+            }
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+
+        // reject as soon as the first one fails.
+        now = System.currentTimeMillis();
+        try {
+            Promise.all(makePromiseTimeout(), makePromiseException()).execute().get();
+            Log.err(tag + "should be rejected");
+        } catch (Exception e) {
+            long ml = System.currentTimeMillis() - now;
+            Log.out(tag + "rejected in %d ms", ml);
+            if (ml > 900) {
+                Log.err(tag + "should be rejected before the slow member finished");
+            }
+        }
+    }
+
+    /**
+     * 测试 allSettled, any, race.
+     */
+    @Test
+    public void testSettleCombinators() {
+        String tag = "promise SettleCombinators: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        try {
+            PromiseSettled settled = (PromiseSettled) Promise
+                    .allSettled(makePromiseTemplate2(), makePromiseException(), makePromiseSleep(100)).execute()
+                    .get();
+            if (settled.size() != 3 || !settled.isFulfilled(0) || settled.isFulfilled(1) || !settled.isFulfilled(2)
+                    || (Integer) settled.getResults()[0] != 2 || !(settled.getResults()[1] instanceof Exception)
+                    || !Promise.STATUS_REJECTED.equals(settled.getStatus()[1])) {
+                Log.err(tag + "allSettled result error");
+            }
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+
+        // the first success wins.
+        try {
+            Object ret = Promise.any(makePromiseException(), makePromiseTemplate2()).execute().get();
+            if ((Integer) ret != 2) {
+                Log.err(tag + "any result error");
+            }
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+        try {
+            Promise.any(makePromiseException(), makePromiseException()).execute().get();
+            Log.err(tag + "any should be rejected");
+        } catch (ExecutionException e) {
+            if (e.getCause().getSuppressed().length != 2) {
+                Log.err(tag + "any should be rejected with all errors");
+            }
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+
+        // the first settled wins, the loser is cancelled.
+        AtomicBoolean interrupted = new AtomicBoolean(false);
+        Promise<Object> loser = new Promise<>((IResolve<Object> resolve, IReject reject) -> {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+            resolve.execute(null);
+        });
+        long now = System.currentTimeMillis();
+        try {
+            Object ret = Promise.race(loser, makePromiseTemplate2()).execute().get();
+            if ((Integer) ret != 2) {
+                Log.err(tag + "race result error");
+            }
+            Thread.sleep(100);
+            if (!interrupted.get() || !loser.isCancelled()) {
+                Log.err(tag + "the loser should be cancelled");
+            }
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+        try {
+            Promise.race(makePromiseSleep(1000), makePromiseException()).execute().get();
+            Log.err(tag + "race should be rejected");
+        } catch (Exception e) {
+        }
+        long ml = System.currentTimeMillis() - now;
+        Log.out(tag + "race ms: %d", ml);
+        if (ml > 900) {
+            Log.err(tag + "race should not wait for the loser");
+        }
+    }
+
+    /**
+     * 测试 continuation 模式.
+     */
+    @Test
+    public void testDeferred() {
+        String tag = "promise Deferred: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        // resolved later in other thread, no worker thread is held while waiting.
+        ArrayList<IPromise> list = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            final int index = i;
+            list.add(new Promise<Integer>((IResolve<Integer> resolve, IReject reject) -> {
+                new Thread(() -> {
+                    try {
+                        Thread.sleep(200);
+                        resolve.execute(index);
+                    } catch (Exception e) {
+                    }
+                }).start();
+            }, true));
+        }
+
+        long now = System.currentTimeMillis();
+        try {
+            Object[] ret = (Object[]) Promise.all(list).execute().get(2000, TimeUnit.MILLISECONDS);
+            Log.out(tag + " ms: %d", System.currentTimeMillis() - now);
+            if ((Integer) ret[49] != 49) {
+                Log.err(tag + "result error");
+            }
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+
+        // rejected later.
+        try {
+            new Promise<Object>((IResolve<Object> resolve, IReject reject) -> {
+                new Thread(() -> {
+                    try {
+                        reject.execute(new Exception("later"));
+                    } catch (Exception e) {
+                    }
+                }).start();
+            }, true).then(res -> {
+                Log.err(tag + "then");
+            }).execute().get(2000, TimeUnit.MILLISECONDS);
+            Log.err(tag + "should be rejected");
+        } catch (ExecutionException e) {
+            Log.out(tag + e.getCause().getMessage());
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+    }
+
+    /**
+     * 测试 leak tracking.
+     */
+    @Test
+    public void testLeakTracking() {
+        String tag = "promise LeakTracking: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        Promise.setLeakTracking(true);
+        try {
+            Promise<Integer> promise = makePromiseTemplate2();
+            Log.out(tag + Promise.dumpDebug());
+            if (!Promise.getTrackedObjects().contains(promise)) {
+                Log.err(tag + "not tracked");
+            }
+
+            promise.execute().get();
+            if (Promise.getTrackedObjects().contains(promise)) {
+                Log.err(tag + "not removed after finished");
+            }
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        } finally {
+            Promise.setLeakTracking(false);
+        }
+
+        if (!Promise.getTrackedObjects().isEmpty() || !Promise.dumpDebug().startsWith("pending: ")) {
+            Log.err(tag + "dump error");
+        }
+    }
+
+    /**
+     * 测试多线程同时等待结果.
+     */
+    @Test
+    public void testConcurrentGet() {
+        String tag = "promise ConcurrentGet: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        PromiseFuture future = makePromiseTimeout().then(res -> {
+            return 5;
+        }).execute();
+
+        AtomicInteger count = new AtomicInteger(0);
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    if ((Integer) future.get(3000, TimeUnit.MILLISECONDS) == 5) {
+                        count.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            Log.err(tag + e.getMessage());
+        }
+
+        if (count.get() != threads.size() || !future.isDone()) {
+            Log.err(tag + "result error");
+        }
+    }
+
+    /**
+     * 测试 get 超时后等待节点被移除.
+     */
+    @Test
+    public void testTimedGet() throws Exception {
+        String tag = "promise TimedGet: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        IResolve<?>[] resolver = new IResolve<?>[1];
+        Promise<Integer> promise = new Promise<>((IResolve<Integer> resolve, IReject reject) -> {
+            resolver[0] = resolve;
+        }, true);
+        PromiseFuture future = promise.execute();
+
+        // the blocked waiter is kept while others time out.
+        AtomicInteger blocked = new AtomicInteger(0);
+        Thread t = new Thread(() -> {
+            try {
+                blocked.set((Integer) future.get());
+            } catch (Exception e) {
+            }
+        });
+        t.start();
+
+        for (int i = 0; i < 1000; i++) {
+            try {
+                future.get(10, TimeUnit.MICROSECONDS);
+                Log.err(tag + "should timeout");
+            } catch (TimeoutException e) {
+            }
+        }
+        if (promise.waiterCount() > 1) {
+            Log.err(tag + "waiters are not removed: " + promise.waiterCount());
+        }
+
+        @SuppressWarnings("unchecked")
+        IResolve<Integer> resolve = (IResolve<Integer>) resolver[0];
+        resolve.execute(5);
+        t.join(2000);
+        if (blocked.get() != 5 || (Integer) future.get() != 5) {
+            Log.err(tag + "result error");
+        }
+    }
+
+    /**
+     * 测试多线程同时 execute, 只能执行一次.
+     */
+    @Test
+    public void testExecuteOnce() {
+        String tag = "promise ExecuteOnce: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        AtomicInteger executed = new AtomicInteger(0);
+        AtomicInteger started = new AtomicInteger(0);
+        Promise<Object> promise = new Promise<>((IResolve<Object> resolve, IReject reject) -> {
+            executed.incrementAndGet();
+            resolve.execute(null);
+        });
+
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    promise.execute().get();
+                    started.incrementAndGet();
+                } catch (Exception e) {
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            Log.err(tag + e.getMessage());
+        }
+
+        if (started.get() != 1 || executed.get() != 1) {
+            Log.err(tag + "executed %d times", executed.get());
+        }
+        if (promise.getState() != Promise.STATE_FULFILLED || !Promise.STATUS_FULFILLED.equals(promise.getStatus())) {
+            Log.err(tag + "status error");
+        }
+    }
+
+    /**
+     * 测试指定 executor 执行.
+     */
+    @Test
+    public void testExecuteOn() {
+        String tag = "promise ExecuteOn: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "custom-pool"));
+        try {
+            Object ret = new Promise<String>((IResolve<String> resolve, IReject reject) -> {
+                resolve.execute(Thread.currentThread().getName());
+            }).executeOn(executor).get();
+            if (!"custom-pool".equals(ret)) {
+                Log.err(tag + "run in " + ret);
+            }
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+
+        // re-init thread pool don't break the running promise.
+        PromiseFuture future = makePromiseTimeout().then(res -> {
+            return 1;
+        }).execute();
+        Febs.init(new Febs.ThreadPoolCfg());
+        try {
+            if ((Integer) future.get() != 1) {
+                Log.err(tag + "result error");
+            }
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+    }
+
+    /**
+     * 测试 virtual thread 配置, 旧版本 JDK 使用线程池.
+     */
+    @Test
+    public void testVirtualThread() {
+        String tag = "promise VirtualThread: ";
+        Log.out("========================================");
+        Log.out(tag + "begin, supported: " + Febs.isVirtualThreadSupported());
+
+        Febs.init(new Febs.ThreadPoolCfg(Febs.ThreadPoolCfg.EXECUTOR_VIRTUAL_THREAD));
+        try {
+            if ((Integer) makePromiseTemplate2().execute().get() != 2) {
+                Log.err(tag + "result error");
+            }
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        } finally {
+            Febs.init(new Febs.ThreadPoolCfg());
+        }
+    }
+
+    /**
+     * 测试超时与取消.
+     */
+    @Test
+    public void testTimeoutAndCancel() {
+        String tag = "promise TimeoutAndCancel: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        // the blocking listener is interrupted by timeout.
+        AtomicInteger interrupted = new AtomicInteger(0);
+        long start = System.currentTimeMillis();
+        Object ret = null;
+        try {
+            ret = new Promise<Object>((IResolve<Object> resolve, IReject reject) -> {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                }
+                resolve.execute(1);
+            }).timeout(100).fail(e -> {
+                return e.getClass().getSimpleName();
+            }).execute().get();
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+        if (!"TimeoutException".equals(ret)) {
+            Log.err(tag + "timeout error: " + ret);
+        }
+        if (System.currentTimeMillis() - start > 1000) {
+            Log.err(tag + "timeout too late");
+        }
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+        }
+        if (interrupted.get() != 1) {
+            Log.err(tag + "listener is not interrupted");
+        }
+
+        // cancel the nested sleep, the timer is removed.
+        PromiseFuture future = Febs.Utils.sleep(100).then(res -> {
+            return Febs.Utils.sleep(5000);
+        }).execute();
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+        }
+        start = System.currentTimeMillis();
+        if (!future.cancel(true) || !future.isCancelled() || !future.isDone()) {
+            Log.err(tag + "cancel error");
+        }
+        try {
+            future.get();
+            Log.err(tag + "cancelled future return result");
+        } catch (CancellationException e) {
+            Log.out(tag + "cancelled");
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+        if (System.currentTimeMillis() - start > 100) {
+            Log.err(tag + "cancel too late");
+        }
+        if (future.cancel(true)) {
+            Log.err(tag + "cancel twice");
+        }
+
+        // the finished promise can't be cancelled.
+        future = makePromiseTemplate2().execute();
+        try {
+            future.get();
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+        if (future.cancel(true) || future.isCancelled()) {
+            Log.err(tag + "cancel finished promise");
+        }
+    }
+
+    private Promise<Object> makePromiseSleep(long ms) {
+        return new Promise<>((IResolve<Object> resolve, IReject reject) -> {
+            Thread.sleep(ms);
+            resolve.execute(Thread.currentThread().getId());
+        });
+    }
+
+    @Test
+    public void testQueuePolicy() throws Exception {
+        String tag = "promise QueuePolicy: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        try {
+            // one running, one queued, the others wait for the queue.
+            Febs.ThreadPoolCfg cfg = new Febs.ThreadPoolCfg(1, 1, null, null, null);
+            cfg.queueCapacity = 1;
+            cfg.queuePolicy = Febs.ThreadPoolCfg.QUEUE_POLICY_BACKPRESSURE;
+            Febs.init(cfg);
+            DefaultMetrics metrics = new DefaultMetrics();
+            Febs.setMetrics(metrics);
+            ArrayList<PromiseFuture> futures = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                futures.add(makePromiseSleep(50).execute());
+            }
+            if (Febs.getWaitingTaskCount() != 3) {
+                Log.err(tag + "waiting error: " + Febs.getWaitingTaskCount());
+            }
+            for (PromiseFuture future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+            if (Febs.getWaitingTaskCount() != 0) {
+                Log.err(tag + "waiting error: " + Febs.getWaitingTaskCount());
+            }
+            // parked, not rejected.
+            if (metrics.getTasksRejected() != 0 || metrics.getTasksParked() != 3) {
+                Log.err(tag + "metrics error: " + metrics.snapshot());
+            }
+
+            // the waiting tasks are handed over to the new pool.
+            Febs.init(cfg);
+            futures.clear();
+            for (int i = 0; i < 4; i++) {
+                futures.add(makePromiseSleep(100).execute());
+            }
+            Febs.init(new Febs.ThreadPoolCfg());
+            for (PromiseFuture future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+
+            // the waiting tasks are rejected if the pool is shutdown.
+            Febs.init(cfg);
+            futures.clear();
+            for (int i = 0; i < 3; i++) {
+                futures.add(makePromiseSleep(100).execute());
+            }
+            Febs.getExecutorService().shutdown();
+            futures.get(0).get(5, TimeUnit.SECONDS);
+            futures.get(1).get(5, TimeUnit.SECONDS);
+            try {
+                futures.get(2).get(5, TimeUnit.SECONDS);
+                Log.err(tag + "shutdown error");
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof RejectedExecutionException)) {
+                    Log.err(tag + "shutdown error: " + e.getCause());
+                }
+            }
+
+            // the third runs in the caller thread.
+            cfg = new Febs.ThreadPoolCfg(1, 1, null, null, null);
+            cfg.queueCapacity = 1;
+            cfg.queuePolicy = Febs.ThreadPoolCfg.QUEUE_POLICY_CALLER_RUNS;
+            Febs.init(cfg);
+            makePromiseSleep(100).execute();
+            makePromiseSleep(100).execute();
+            Object tid = makePromiseSleep(0).execute().get();
+            if (!Long.valueOf(Thread.currentThread().getId()).equals(tid)) {
+                Log.err(tag + "caller runs error: " + tid);
+            }
+
+            // the queued one is shed by the third.
+            cfg = new Febs.ThreadPoolCfg(1, 1, null, null, null);
+            cfg.queueCapacity = 1;
+            cfg.queuePolicy = Febs.ThreadPoolCfg.QUEUE_POLICY_SHED_OLDEST;
+            Febs.init(cfg);
+            PromiseFuture first = makePromiseSleep(100).execute();
+            PromiseFuture second = makePromiseSleep(0).execute();
+            PromiseFuture third = makePromiseSleep(0).execute();
+            try {
+                second.get();
+                Log.err(tag + "shed error");
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof RejectedExecutionException)) {
+                    Log.err(tag + "shed error: " + e.getCause());
+                }
+            }
+            first.get();
+            third.get();
+        } finally {
+            Febs.setMetrics(null);
+            Febs.init(new Febs.ThreadPoolCfg());
+        }
+    }
+
+    @Test
+    public void testRejectedStart() throws Exception {
+        String tag = "promise RejectedStart: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        try {
+            // one running, one queued, the third is aborted.
+            Febs.ThreadPoolCfg cfg = new Febs.ThreadPoolCfg(1, 1, null, null, null);
+            cfg.queueCapacity = 1;
+            Febs.init(cfg);
+            DefaultMetrics metrics = new DefaultMetrics();
+            Febs.setMetrics(metrics);
+            PromiseFuture first = makePromiseSleep(100).execute();
+            PromiseFuture second = makePromiseSleep(0).execute();
+
+            AtomicBoolean failed = new AtomicBoolean(false);
+            AtomicBoolean finished = new AtomicBoolean(false);
+            Promise<?> third = makePromiseSleep(0).fail(e -> {
+                failed.set(true);
+            });
+            try {
+                third.finish(() -> finished.set(true)).execute();
+                Log.err(tag + "should be aborted");
+            } catch (FebsRuntimeException e) {
+            }
+            if (!failed.get() || !finished.get()) {
+                Log.err(tag + "the chain is not rejected");
+            }
+            if (metrics.getTasksRejected() != 1) {
+                Log.err(tag + "rejected count: " + metrics.getTasksRejected());
+            }
+            first.get();
+            second.get();
+        } finally {
+            Febs.setMetrics(null);
+            Febs.init(new Febs.ThreadPoolCfg());
+        }
+    }
+
+    @Test
+    public void testForkJoin() throws Exception {
+        String tag = "promise ForkJoin: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        try {
+            Febs.ThreadPoolCfg cfg = new Febs.ThreadPoolCfg(Febs.ThreadPoolCfg.EXECUTOR_FORK_JOIN);
+            Febs.init(cfg);
+            if (!(Febs.getExecutorService() instanceof ForkJoinPool)) {
+                Log.err(tag + "executor error");
+            }
+
+            ArrayList<PromiseFuture> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(new Promise<>((IResolve<Object> resolve, IReject reject) -> {
+                    resolve.execute(Thread.currentThread().getName());
+                }).then(res -> {
+                    // the nested promise is submitted in the worker.
+                    return Febs.Utils.sleep(1).then(r -> {
+                        return res;
+                    });
+                }).execute());
+            }
+            for (PromiseFuture future : futures) {
+                Object name = future.get(5, TimeUnit.SECONDS);
+                if (!String.valueOf(name).startsWith("febs-fj-")) {
+                    Log.err(tag + "thread error: " + name);
+                }
+            }
+        } finally {
+            Febs.init(new Febs.ThreadPoolCfg());
+        }
+    }
 }
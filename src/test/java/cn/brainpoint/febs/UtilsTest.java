@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2020 Copyright bp All Rights Reserved.
+ * Author: pengxiang.li
+ * Desc:
+ */
+
+package cn.brainpoint.febs;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import cn.brainpoint.febs.libs.promise.IPromise;
+
+/**
+ * @author pengxiang.li
+ */
+public class UtilsTest {
+
+    /**
+     * 测试 sleep 不占用线程池.
+     */
+    @Test
+    public void testSleep() {
+        String tag = "utils Sleep: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        // more than the threads of default pool.
+        ArrayList<IPromise> list = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            list.add(Febs.Utils.sleep(500));
+        }
+
+        long now = System.currentTimeMillis();
+        try {
+            Promise.all(list).execute().get();
+        } catch (Exception e) {
+            Log.err(tag + e.getMessage());
+        }
+
+        long ml = System.currentTimeMillis() - now;
+        Log.out(tag + "ms: %d", ml);
+        if (ml < 490 || ml > 900) {
+            Log.err(tag + "sleep in parallel error");
+        }
+    }
+
+    /**
+     * 测试 setTimeout / setInterval.
+     */
+    @Test
+    public void testTimer() {
+        String tag = "utils Timer: ";
+        Log.out("========================================");
+        Log.out(tag + "begin");
+
+        AtomicInteger timeout = new AtomicInteger(0);
+        AtomicInteger interval = new AtomicInteger(0);
+        AtomicInteger cleared = new AtomicInteger(0);
+
+        Febs.Utils.setTimeout(() -> timeout.incrementAndGet(), 100);
+        ScheduledFuture<?> timer = Febs.Utils.setTimeout(() -> cleared.incrementAndGet(), 100);
+        Febs.Utils.clearTimeout(timer);
+        ScheduledFuture<?> intervalTimer = Febs.Utils.setInterval(() -> interval.incrementAndGet(), 50);
+
+        try {
+            Thread.sleep(330);
+        } catch (InterruptedException e) {
+            Log.err(tag + e.getMessage());
+        }
+        Febs.Utils.clearInterval(intervalTimer);
+
+        Log.out(tag + "timeout: %d, interval: %d", timeout.get(), interval.get());
+        if (timeout.get() != 1 || cleared.get() != 0) {
+            Log.err(tag + "timeout error");
+        }
+        if (interval.get() < 4) {
+            Log.err(tag + "interval error");
+        }
+    }
+}